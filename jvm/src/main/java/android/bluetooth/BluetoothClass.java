@@ -0,0 +1,15 @@
+package android.bluetooth;
+
+/** Stand-in that only carries the class of device bits. */
+public final class BluetoothClass {
+
+    private final int mClass;
+
+    public BluetoothClass(final int deviceClass) {
+        mClass = deviceClass;
+    }
+
+    public int getDeviceClass() {
+        return mClass & 0x1FFC;
+    }
+}
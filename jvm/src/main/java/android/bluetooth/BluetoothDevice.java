@@ -0,0 +1,96 @@
+package android.bluetooth;
+
+/** Stand-in with the framework constant values; carries an address and a name. */
+public final class BluetoothDevice {
+
+    public static final int ERROR = Integer.MIN_VALUE;
+
+    public static final int BOND_NONE = 10;
+
+    public static final int BOND_BONDING = 11;
+
+    public static final int BOND_BONDED = 12;
+
+    public static final String EXTRA_DEVICE = "android.bluetooth.device.extra.DEVICE";
+
+    public static final String EXTRA_NAME = "android.bluetooth.device.extra.NAME";
+
+    public static final String EXTRA_RSSI = "android.bluetooth.device.extra.RSSI";
+
+    public static final String EXTRA_CLASS = "android.bluetooth.device.extra.CLASS";
+
+    private final String mAddress;
+
+    private final String mName;
+
+    private boolean mAnswersRefused = false;
+
+    public BluetoothDevice(final String address) {
+        this(address, null);
+    }
+
+    public BluetoothDevice(final String address, final String name) {
+        mAddress = address;
+        mName = name;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    /** A binder call on a device; a field read here. */
+    public String getName() {
+        return mName;
+    }
+
+    public int getBondState() {
+        return BOND_NONE;
+    }
+
+    /**
+     * Makes setPin, setPasskey and setPairingConfirmation return false, the
+     * way API 19+ refuses them to an app without BLUETOOTH_PRIVILEGED.
+     * Stand-in only.
+     */
+    public void setPairingAnswersRefused(final boolean refused) {
+        mAnswersRefused = refused;
+    }
+
+    /*
+     * Hidden before API 19; HiddenBluetoothApi finds them by reflection. They
+     * accept every request unless answers are refused.
+     */
+
+    public boolean createBond() {
+        return true;
+    }
+
+    public boolean setPin(final byte[] pin) {
+        return !mAnswersRefused;
+    }
+
+    public boolean setPasskey(final int passkey) {
+        return !mAnswersRefused;
+    }
+
+    public boolean setPairingConfirmation(final boolean confirm) {
+        return !mAnswersRefused;
+    }
+
+    public boolean cancelPairingUserInput() {
+        return true;
+    }
+
+    public boolean cancelBondProcess() {
+        return true;
+    }
+
+    public boolean removeBond() {
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return mAddress;
+    }
+}
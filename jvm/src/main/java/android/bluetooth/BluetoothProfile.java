@@ -0,0 +1,17 @@
+package android.bluetooth;
+
+/** Stand-in with the framework constant values. */
+public interface BluetoothProfile {
+
+    int STATE_DISCONNECTED = 0;
+
+    int STATE_CONNECTING = 1;
+
+    int STATE_CONNECTED = 2;
+
+    int STATE_DISCONNECTING = 3;
+
+    int HEADSET = 1;
+
+    int A2DP = 2;
+}
@@ -0,0 +1,31 @@
+package android.content;
+
+/** Stand-in with the ordered broadcast state a receiver can see and abort. */
+public abstract class BroadcastReceiver {
+
+    private boolean mOrdered = false;
+
+    private boolean mAbort = false;
+
+    public abstract void onReceive(Context context, Intent intent);
+
+    public final boolean isOrderedBroadcast() {
+        return mOrdered;
+    }
+
+    public final void abortBroadcast() {
+        if (!mOrdered)
+            throw new IllegalStateException("abortBroadcast on a non-ordered broadcast");
+        mAbort = true;
+    }
+
+    public final boolean getAbortBroadcast() {
+        return mAbort;
+    }
+
+    /** Set by the delivering context before each {@link #onReceive}. */
+    public final void setOrderedHint(final boolean ordered) {
+        mOrdered = ordered;
+        mAbort = false;
+    }
+}
@@ -0,0 +1,58 @@
+package android.content;
+
+import android.os.Handler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stand-in that keeps its registered receivers and delivers ordered
+ * broadcasts to them synchronously, highest priority first, until one aborts.
+ */
+public class Context {
+
+    private static final class Registration {
+
+        final BroadcastReceiver receiver;
+
+        final IntentFilter filter;
+
+        Registration(final BroadcastReceiver receiver, final IntentFilter filter) {
+            this.receiver = receiver;
+            this.filter = filter;
+        }
+    }
+
+    private final List<Registration> mRegistrations = new ArrayList<Registration>();
+
+    public Intent registerReceiver(final BroadcastReceiver receiver, final IntentFilter filter) {
+        return registerReceiver(receiver, filter, null, null);
+    }
+
+    public Intent registerReceiver(final BroadcastReceiver receiver, final IntentFilter filter,
+            final String broadcastPermission, final Handler scheduler) {
+        int i = 0;
+        while (i < mRegistrations.size() && mRegistrations.get(i).filter.getPriority() >= filter.getPriority())
+            i++;
+        mRegistrations.add(i, new Registration(receiver, filter));
+        return null;
+    }
+
+    public void unregisterReceiver(final BroadcastReceiver receiver) {
+        for (int i = mRegistrations.size() - 1; i >= 0; i--) {
+            if (mRegistrations.get(i).receiver == receiver)
+                mRegistrations.remove(i);
+        }
+    }
+
+    public void sendOrderedBroadcast(final Intent intent, final String receiverPermission) {
+        for (final Registration registration : new ArrayList<Registration>(mRegistrations)) {
+            if (!registration.filter.hasAction(intent.getAction()))
+                continue;
+            registration.receiver.setOrderedHint(true);
+            registration.receiver.onReceive(this, intent);
+            if (registration.receiver.getAbortBroadcast())
+                return;
+        }
+    }
+}
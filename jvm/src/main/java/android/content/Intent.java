@@ -0,0 +1,59 @@
+package android.content;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/** Stand-in with an action and the typed extras the discovery code reads. */
+public class Intent {
+
+    private final String mAction;
+
+    private final Map<String, Object> mExtras = new HashMap<String, Object>();
+
+    public Intent(final String action) {
+        mAction = action;
+    }
+
+    public String getAction() {
+        return mAction;
+    }
+
+    public Intent putExtra(final String name, final String value) {
+        mExtras.put(name, value);
+        return this;
+    }
+
+    public Intent putExtra(final String name, final short value) {
+        mExtras.put(name, value);
+        return this;
+    }
+
+    public Intent putExtra(final String name, final int value) {
+        mExtras.put(name, value);
+        return this;
+    }
+
+    public Intent putExtra(final String name, final Object value) {
+        mExtras.put(name, value);
+        return this;
+    }
+
+    public String getStringExtra(final String name) {
+        return (String) mExtras.get(name);
+    }
+
+    public short getShortExtra(final String name, final short defaultValue) {
+        final Object value = mExtras.get(name);
+        return value instanceof Short ? (Short) value : defaultValue;
+    }
+
+    public int getIntExtra(final String name, final int defaultValue) {
+        final Object value = mExtras.get(name);
+        return value instanceof Integer ? (Integer) value : defaultValue;
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> T getParcelableExtra(final String name) {
+        return (T) mExtras.get(name);
+    }
+}
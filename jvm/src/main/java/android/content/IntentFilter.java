@@ -0,0 +1,27 @@
+package android.content;
+
+/** Stand-in matching one action, with the receiver priority. */
+public class IntentFilter {
+
+    public static final int SYSTEM_HIGH_PRIORITY = 1000;
+
+    private final String mAction;
+
+    private int mPriority = 0;
+
+    public IntentFilter(final String action) {
+        mAction = action;
+    }
+
+    public void setPriority(final int priority) {
+        mPriority = priority;
+    }
+
+    public int getPriority() {
+        return mPriority;
+    }
+
+    public boolean hasAction(final String action) {
+        return mAction.equals(action);
+    }
+}
@@ -0,0 +1,5 @@
+package android.os;
+
+/** Stand-in; the stand-in {@link android.content.Context} delivers on the caller's thread. */
+public class Handler {
+}
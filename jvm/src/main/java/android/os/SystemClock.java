@@ -0,0 +1,12 @@
+package android.os;
+
+/** Stand-in for the framework clock, backed by {@link System#nanoTime()}. */
+public final class SystemClock {
+
+    private SystemClock() {
+    }
+
+    public static long elapsedRealtime() {
+        return System.nanoTime() / 1000000L;
+    }
+}
@@ -0,0 +1,50 @@
+package android.util;
+
+/**
+ * Stand-in for the framework logger. Silent unless the JVM runs with
+ * {@code -Dandroid.log=true}, then everything goes to stderr.
+ */
+public final class Log {
+
+    private static final boolean ENABLED = Boolean.getBoolean("android.log");
+
+    private Log() {
+    }
+
+    private static int print(final char level, final String tag, final String msg, final Throwable tr) {
+        if (!ENABLED)
+            return 0;
+        System.err.println(level + "/" + tag + ": " + msg);
+        if (tr != null)
+            tr.printStackTrace();
+        return 0;
+    }
+
+    public static int v(final String tag, final String msg) {
+        return print('V', tag, msg, null);
+    }
+
+    public static int d(final String tag, final String msg) {
+        return print('D', tag, msg, null);
+    }
+
+    public static int i(final String tag, final String msg) {
+        return print('I', tag, msg, null);
+    }
+
+    public static int w(final String tag, final String msg) {
+        return print('W', tag, msg, null);
+    }
+
+    public static int w(final String tag, final String msg, final Throwable tr) {
+        return print('W', tag, msg, tr);
+    }
+
+    public static int e(final String tag, final String msg) {
+        return print('E', tag, msg, null);
+    }
+
+    public static int e(final String tag, final String msg, final Throwable tr) {
+        return print('E', tag, msg, tr);
+    }
+}
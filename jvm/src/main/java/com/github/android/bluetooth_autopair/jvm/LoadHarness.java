@@ -0,0 +1,140 @@
+package com.github.android.bluetooth_autopair.jvm;
+
+import android.bluetooth.BluetoothProfile;
+
+import com.github.android.bluetooth_autopair.bt_module.AutoConnect;
+import com.github.android.bluetooth_autopair.bt_module.BatchResult;
+import com.github.android.bluetooth_autopair.bt_module.ConnectMetrics;
+import com.github.android.bluetooth_autopair.bt_module.SimulatedBtStack;
+import com.github.android.bluetooth_autopair.bt_module.VirtualScheduler;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Drives thousands of connect sessions through one {@link AutoConnect} on a
+ * {@link SimulatedBtStack} and a {@link VirtualScheduler}, so bonds, retries,
+ * timeouts and backoff run at full engine speed instead of radio speed.
+ * Requests arrive in batches at a fixed virtual interval; the run ends when
+ * the scheduler is idle.
+ *
+ * <pre>
+ * mvn -B exec:java -Dexec.args="[sessions] [batch size] [seed]"
+ * </pre>
+ */
+public final class LoadHarness {
+
+    public static final class Config {
+
+        public int sessions = 5000;
+
+        public int batchSize = 4;
+
+        /**
+         * Virtual time between two submitted batches; about what the serial
+         * bond queue needs for the unbonded half of a batch.
+         */
+        public long batchIntervalMs = 4000;
+
+        public long seed = 1;
+
+        public float bondedFraction = 0.5f;
+
+        public float bondFailureRate = 0.05f;
+
+        public float connectFailureRate = 0.05f;
+    }
+
+    public static final class Result {
+
+        public int sessions;
+
+        public int successes;
+
+        public int failures;
+
+        public int batches;
+
+        public long virtualMs;
+
+        public long wallMs;
+
+        public ConnectMetrics metrics;
+
+        public String toJson() {
+            return String.format(Locale.US,
+                    "{\"sessions\":%d,\"successes\":%d,\"failures\":%d,\"batches\":%d,"
+                            + "\"virtual_ms\":%d,\"wall_ms\":%d,\"metrics\":%s}",
+                    sessions, successes, failures, batches, virtualMs, wallMs, metrics.dumpJson());
+        }
+    }
+
+    private LoadHarness() {
+    }
+
+    public static Result run(final Config config, final File filesDir) {
+        final VirtualScheduler scheduler = new VirtualScheduler();
+        final SimulatedBtStack stack = new SimulatedBtStack(config.seed, scheduler);
+        stack.setBondFailureRate(config.bondFailureRate);
+        stack.setConnectFailureRate(config.connectFailureRate);
+        final List<String> addresses = new ArrayList<String>(
+                stack.populate(config.sessions, config.bondedFraction));
+        // populate hands back a set; fix the submission order for a repeatable run
+        Collections.sort(addresses);
+
+        final Result result = new Result();
+        final AutoConnect autoConnect = new AutoConnect(new AutoConnect.Listener() {
+
+            @Override
+            public void onConnectResult(final String address, final boolean success) {
+                if (success)
+                    result.successes++;
+                else
+                    result.failures++;
+            }
+
+            @Override
+            public void onBatchComplete(final BatchResult batch) {
+                result.batches++;
+            }
+        }, stack, filesDir, scheduler);
+        autoConnect.setProfiles(new HashSet<Integer>(Arrays.asList(BluetoothProfile.A2DP, BluetoothProfile.HEADSET)));
+        autoConnect.getRetryPolicy().setJitterSeed(config.seed);
+
+        final long startTime = scheduler.now();
+        final long wallStart = System.nanoTime();
+        for (int i = 0; i < addresses.size(); i += config.batchSize) {
+            autoConnect.startConnectByAddress(addresses.subList(i, Math.min(i + config.batchSize, addresses.size())));
+            scheduler.advance(config.batchIntervalMs);
+        }
+        scheduler.runUntilIdle();
+        result.wallMs = (System.nanoTime() - wallStart) / 1000000L;
+        result.virtualMs = scheduler.now() - startTime;
+        result.sessions = addresses.size();
+        result.metrics = autoConnect.getMetrics();
+        autoConnect.destroy();
+        scheduler.runUntilIdle();
+        return result;
+    }
+
+    public static void main(final String[] args) throws IOException {
+        final Config config = new Config();
+        if (args.length > 0)
+            config.sessions = Integer.parseInt(args[0]);
+        if (args.length > 1)
+            config.batchSize = Integer.parseInt(args[1]);
+        if (args.length > 2)
+            config.seed = Long.parseLong(args[2]);
+        final File filesDir = Files.createTempDirectory("autoconnect").toFile();
+        final Result result = run(config, filesDir);
+        System.out.println(result.toJson());
+        System.out.println(result.metrics.dump());
+    }
+}
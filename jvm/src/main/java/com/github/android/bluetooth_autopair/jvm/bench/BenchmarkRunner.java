@@ -0,0 +1,33 @@
+package com.github.android.bluetooth_autopair.jvm.bench;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of {@code benchmarks.jar}. Takes the usual JMH command line
+ * (e.g. a benchmark regex, {@code -p devices=100}) and always writes the
+ * results as JSON, to {@value #DEFAULT_RESULT} unless {@code -rff} says
+ * otherwise, so runs of different releases can be compared.
+ */
+public final class BenchmarkRunner {
+
+    public static final String DEFAULT_RESULT = "target/jmh-result.json";
+
+    private BenchmarkRunner() {
+    }
+
+    public static void main(final String[] args) throws RunnerException, CommandLineOptionException {
+        final CommandLineOptions commandLine = new CommandLineOptions(args);
+        final Options options = new OptionsBuilder()
+                .parent(commandLine)
+                .resultFormat(ResultFormatType.JSON)
+                .result(commandLine.getResult().orElse(DEFAULT_RESULT))
+                .build();
+        new Runner(options).run();
+    }
+}
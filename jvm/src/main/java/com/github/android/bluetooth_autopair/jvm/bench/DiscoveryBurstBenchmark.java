@@ -0,0 +1,166 @@
+package com.github.android.bluetooth_autopair.jvm.bench;
+
+import android.bluetooth.BluetoothClass;
+import android.bluetooth.BluetoothDevice;
+import android.content.Intent;
+
+import com.github.android.bluetooth_autopair.bt_module.DeviceSnapshot;
+import com.github.android.bluetooth_autopair.bt_module.RankedDeviceList;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays {@value #EVENTS} synthetic ACTION_FOUND results into the device
+ * list, the way DeviceListActivity.addDevice receives them: {@code devices}
+ * distinct devices, each answering repeatedly with a varying RSSI, delivered
+ * in bursts of {@code burst} results between two frames.
+ * <p>
+ * The baseline is the removed code: a linear address scan of an ArrayList
+ * and a {@code notifyDataSetChanged()} per new device. The current model
+ * merges duplicates through the address index, re-ranks by RSSI and flushes
+ * once per frame, rebinding every visible row only when the order changed
+ * and just the changed rows otherwise. A row bind is modelled as reading
+ * what the row shows; ListView rebinds only the {@value #VISIBLE_ROWS}
+ * visible rows.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DiscoveryBurstBenchmark {
+
+    private static final int EVENTS = 1000;
+
+    private static final int VISIBLE_ROWS = 10;
+
+    private static final int CLASS_AUDIO_LOUDSPEAKER = 0x0414;
+
+    private static final int CLASS_PHONE_SMART = 0x020C;
+
+    @Param({ "50", "500" })
+    public int devices;
+
+    /** Inquiry results delivered between two frames. */
+    @Param({ "1", "20" })
+    public int burst;
+
+    private BluetoothDevice[] mEventDevices;
+
+    private Intent[] mEventIntents;
+
+    @Setup
+    public void setUp() {
+        final Random random = new Random(1);
+        final BluetoothDevice[] population = new BluetoothDevice[devices];
+        for (int i = 0; i < devices; i++) {
+            final String address = String.format(Locale.US, "00:5A:00:00:%02X:%02X", (i >> 8) & 0xFF, i & 0xFF);
+            population[i] = new BluetoothDevice(address, "Speaker " + i);
+        }
+        mEventDevices = new BluetoothDevice[EVENTS];
+        mEventIntents = new Intent[EVENTS];
+        for (int i = 0; i < EVENTS; i++) {
+            // every device answers at least once, then at random
+            final BluetoothDevice device = population[i < devices ? i : random.nextInt(devices)];
+            final Intent intent = new Intent("android.bluetooth.device.action.FOUND");
+            intent.putExtra(BluetoothDevice.EXTRA_NAME, device.getName());
+            intent.putExtra(BluetoothDevice.EXTRA_RSSI, (short) (-40 - random.nextInt(50)));
+            intent.putExtra(BluetoothDevice.EXTRA_CLASS,
+                    new BluetoothClass(random.nextBoolean() ? CLASS_AUDIO_LOUDSPEAKER : CLASS_PHONE_SMART));
+            mEventDevices[i] = device;
+            mEventIntents[i] = intent;
+        }
+    }
+
+    private static void bindRow(final BluetoothDevice device, final Blackhole blackhole) {
+        blackhole.consume(device.getName());
+        blackhole.consume(device.getAddress());
+    }
+
+    private static void bindRow(final DeviceSnapshot snapshot, final Blackhole blackhole) {
+        blackhole.consume(snapshot.getName());
+        blackhole.consume(snapshot.getAddress());
+        blackhole.consume(snapshot.getRssiText());
+    }
+
+    /** The removed addDevice, kept here as the baseline. */
+    @Benchmark
+    public int arrayListScan(final Blackhole blackhole) {
+        final List<BluetoothDevice> deviceList = new ArrayList<BluetoothDevice>();
+        for (int i = 0; i < EVENTS; i++) {
+            final BluetoothDevice device = mEventDevices[i];
+            boolean deviceFound = false;
+            for (final BluetoothDevice listDev : deviceList) {
+                if (listDev.getAddress().equals(device.getAddress())) {
+                    deviceFound = true;
+                    break;
+                }
+            }
+            if (!deviceFound) {
+                deviceList.add(device);
+                // notifyDataSetChanged()
+                for (int row = 0; row < Math.min(VISIBLE_ROWS, deviceList.size()); row++)
+                    bindRow(deviceList.get(row), blackhole);
+            }
+        }
+        return deviceList.size();
+    }
+
+    @Benchmark
+    public int rankedCoalesced(final Blackhole blackhole) {
+        final RankedDeviceList deviceList = new RankedDeviceList();
+        final Set<DeviceSnapshot> changed = new HashSet<DeviceSnapshot>();
+        boolean orderChanged = false;
+        for (int i = 0; i < EVENTS; i++) {
+            final BluetoothDevice device = mEventDevices[i];
+            final Intent intent = mEventIntents[i];
+            final DeviceSnapshot known = deviceList.get(device.getAddress());
+            if (known != null) {
+                final boolean moved = deviceList.updateRssi(known, DeviceSnapshot.getRssi(intent));
+                known.updateFromFoundIntent(intent);
+                if (moved)
+                    orderChanged = true;
+                else
+                    changed.add(known);
+            } else {
+                deviceList.add(DeviceSnapshot.fromFoundIntent(device, intent));
+                orderChanged = true;
+            }
+            if ((i + 1) % burst == 0 || i == EVENTS - 1) {
+                // the per-frame flush
+                if (orderChanged) {
+                    for (int row = 0; row < Math.min(VISIBLE_ROWS, deviceList.size()); row++)
+                        bindRow(deviceList.get(row), blackhole);
+                } else {
+                    for (final DeviceSnapshot snapshot : changed) {
+                        if (deviceList.indexOf(snapshot) < VISIBLE_ROWS)
+                            bindRow(snapshot, blackhole);
+                    }
+                }
+                orderChanged = false;
+                changed.clear();
+            }
+        }
+        return deviceList.size();
+    }
+}
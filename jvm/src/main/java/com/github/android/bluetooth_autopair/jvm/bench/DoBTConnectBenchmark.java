@@ -0,0 +1,99 @@
+package com.github.android.bluetooth_autopair.jvm.bench;
+
+import com.github.android.bluetooth_autopair.bt_module.AutoConnect;
+import com.github.android.bluetooth_autopair.bt_module.BatchResult;
+import com.github.android.bluetooth_autopair.bt_module.SimulatedBtStack;
+import com.github.android.bluetooth_autopair.bt_module.VirtualScheduler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CPU cost of one startConnect run through the engine, from the request to
+ * the batch report: bond queue, profile legs, timeouts, metrics and the
+ * learned-state saves. Radio latency is simulated on a
+ * {@link VirtualScheduler}, so it costs nothing and only the orchestration
+ * is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DoBTConnectBenchmark {
+
+    @Param({ "1", "8" })
+    public int devices;
+
+    /** Already bonded devices skip straight to the profile connects. */
+    @Param({ "true", "false" })
+    public boolean bonded;
+
+    private File mFilesDir;
+
+    private int mSuccesses;
+
+    private final AutoConnect.Listener mListener = new AutoConnect.Listener() {
+
+        @Override
+        public void onConnectResult(final String address, final boolean success) {
+            if (success)
+                mSuccesses++;
+        }
+
+        @Override
+        public void onBatchComplete(final BatchResult result) {
+        }
+    };
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mFilesDir = Files.createTempDirectory("bench").toFile();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        final File[] files = mFilesDir.listFiles();
+        if (files != null) {
+            for (final File file : files)
+                file.delete();
+        }
+        mFilesDir.delete();
+    }
+
+    @Benchmark
+    public int doBTConnect() {
+        final VirtualScheduler scheduler = new VirtualScheduler();
+        final SimulatedBtStack stack = new SimulatedBtStack(1, scheduler);
+        final List<String> addresses = new ArrayList<String>(stack.populate(devices, bonded ? 1f : 0f));
+        Collections.sort(addresses);
+        final AutoConnect autoConnect = new AutoConnect(mListener, stack, mFilesDir, scheduler);
+        autoConnect.getRetryPolicy().setJitterSeed(1);
+        mSuccesses = 0;
+        autoConnect.startConnectByAddress(addresses);
+        scheduler.runUntilIdle();
+        autoConnect.destroy();
+        scheduler.runUntilIdle();
+        return mSuccesses;
+    }
+}
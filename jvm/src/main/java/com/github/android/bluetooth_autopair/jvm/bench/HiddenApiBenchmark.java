@@ -0,0 +1,72 @@
+package com.github.android.bluetooth_autopair.jvm.bench;
+
+import android.bluetooth.BluetoothA2dp;
+import android.bluetooth.BluetoothDevice;
+
+import com.github.android.bluetooth_autopair.bt_module.HiddenBluetoothApi;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-call cost of the hidden createBond and legacy A2DP connect: looked up
+ * with {@code getMethod} on every call as before, through the methods
+ * {@link HiddenBluetoothApi} resolves once, and called directly as API 19+
+ * allows for createBond. The stand-in methods return at once, so only the
+ * calling overhead is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HiddenApiBenchmark {
+
+    private final HiddenBluetoothApi mHiddenApi = new HiddenBluetoothApi();
+
+    private final BluetoothDevice mDevice = new BluetoothDevice("00:5A:00:00:00:01", "Speaker");
+
+    private final BluetoothA2dp mA2dp = new BluetoothA2dp();
+
+    /** The removed AutoConnect.createBond, kept here as the baseline. */
+    @Benchmark
+    public boolean createBondUncached() throws Exception {
+        final Method createBondMethod = BluetoothDevice.class.getMethod("createBond");
+        final Boolean returnValue = (Boolean) createBondMethod.invoke(mDevice);
+        return returnValue.booleanValue();
+    }
+
+    @Benchmark
+    public boolean createBondCached() {
+        return mHiddenApi.createBond(mDevice);
+    }
+
+    @Benchmark
+    public boolean createBondDirect() {
+        return mDevice.createBond();
+    }
+
+    /** The removed connectToA2dp below API 17, kept here as the baseline. */
+    @Benchmark
+    public boolean a2dpConnectUncached() throws Exception {
+        final Method connect = mA2dp.getClass().getMethod("connect", BluetoothDevice.class);
+        final Boolean returnValue = (Boolean) connect.invoke(mA2dp, mDevice);
+        return returnValue.booleanValue();
+    }
+
+    @Benchmark
+    public boolean a2dpConnectCached() {
+        return mHiddenApi.connect(mA2dp, mDevice);
+    }
+}
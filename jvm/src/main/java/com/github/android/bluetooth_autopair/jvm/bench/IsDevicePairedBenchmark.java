@@ -0,0 +1,81 @@
+package com.github.android.bluetooth_autopair.jvm.bench;
+
+import android.bluetooth.BluetoothDevice;
+
+import com.github.android.bluetooth_autopair.bt_module.BondedDeviceIndex;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The paired check before and after the bonded-device index: the old
+ * {@code isDevicePaired(getBondedDevices())} copied the bonded set and
+ * compared every device's name, the index is one lookup by address. Like
+ * the framework's, the copy is a HashSet, so where the scan meets the device
+ * looked for depends on hash order.
+ * <p>
+ * On a device each {@code getName()} and the {@code getBondedDevices()} copy
+ * are binder calls; the stand-in reads fields, so the scan's numbers here
+ * are a lower bound.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IsDevicePairedBenchmark {
+
+    @Param({ "10", "100", "1000" })
+    public int bonded;
+
+    private Set<BluetoothDevice> mBondedDevices;
+
+    private final BondedDeviceIndex mIndex = new BondedDeviceIndex();
+
+    private BluetoothDevice mTarget;
+
+    @Setup
+    public void setUp() {
+        mBondedDevices = new LinkedHashSet<BluetoothDevice>();
+        final Set<String> addresses = new HashSet<String>();
+        for (int i = 0; i < bonded; i++) {
+            final String address = String.format(Locale.US, "00:5A:00:00:%02X:%02X", (i >> 8) & 0xFF, i & 0xFF);
+            mTarget = new BluetoothDevice(address, "Speaker " + i);
+            mBondedDevices.add(mTarget);
+            addresses.add(address);
+        }
+        mIndex.seed(addresses, 0);
+    }
+
+    /** The removed implementation, kept here as the baseline. */
+    @Benchmark
+    public boolean linearScan() {
+        final Set<BluetoothDevice> list = new HashSet<BluetoothDevice>(mBondedDevices);
+        for (final BluetoothDevice device : list) {
+            if (device.getName().equalsIgnoreCase(mTarget.getName()))
+                return true;
+        }
+        return false;
+    }
+
+    @Benchmark
+    public boolean index() {
+        return mIndex.isBonded(mTarget.getAddress());
+    }
+}
@@ -0,0 +1,120 @@
+package com.github.android.bluetooth_autopair.jvm.bench;
+
+import com.github.android.bluetooth_autopair.bt_module.AutoConnect;
+import com.github.android.bluetooth_autopair.bt_module.BatchResult;
+import com.github.android.bluetooth_autopair.bt_module.FlightRecorder;
+import com.github.android.bluetooth_autopair.bt_module.RecordingBtStack;
+import com.github.android.bluetooth_autopair.bt_module.ReplayBtStack;
+import com.github.android.bluetooth_autopair.bt_module.SimulatedBtStack;
+import com.github.android.bluetooth_autopair.bt_module.VirtualScheduler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CPU cost of replaying one recorded run through the engine on a
+ * {@link VirtualScheduler}: the trace is recorded once off the simulated
+ * stack, then every operation plays it back into a fresh engine, the way a
+ * field trace is checked against a change to the connect logic. Setup fails
+ * if the replay diverges from the recording.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReplayBenchmark {
+
+    @Param({ "1", "8" })
+    public int devices;
+
+    private File mFilesDir;
+
+    private List<FlightRecorder.Record> mRun;
+
+    private final AutoConnect.Listener mListener = new AutoConnect.Listener() {
+
+        @Override
+        public void onConnectResult(final String address, final boolean success) {
+        }
+
+        @Override
+        public void onBatchComplete(final BatchResult result) {
+        }
+    };
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mFilesDir = Files.createTempDirectory("bench").toFile();
+        final File trace = new File(mFilesDir, "trace.bin");
+        final VirtualScheduler scheduler = new VirtualScheduler();
+        final SimulatedBtStack stack = new SimulatedBtStack(1, scheduler);
+        final List<String> addresses = new ArrayList<String>(stack.populate(devices, 0.5f));
+        Collections.sort(addresses);
+        final FlightRecorder recorder = new FlightRecorder(trace, FlightRecorder.DEFAULT_CAPACITY, scheduler);
+        final AutoConnect autoConnect = new AutoConnect(mListener, new RecordingBtStack(stack, recorder),
+                mFilesDir, scheduler);
+        autoConnect.getRetryPolicy().setJitterSeed(1);
+        autoConnect.startConnectByAddress(addresses);
+        scheduler.runUntilIdle();
+        autoConnect.destroy();
+        scheduler.runUntilIdle();
+        mRun = ReplayBtStack.splitRuns(FlightRecorder.read(trace)).get(0);
+        if (replay() != 0)
+            throw new IllegalStateException("replay diverges from the recording");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        final File[] files = mFilesDir.listFiles();
+        if (files != null) {
+            for (final File file : files)
+                file.delete();
+        }
+        mFilesDir.delete();
+    }
+
+    /** @return the divergence count, 0 for a faithful replay */
+    @Benchmark
+    public int replay() {
+        final VirtualScheduler scheduler = new VirtualScheduler();
+        final ReplayBtStack stack = new ReplayBtStack(mRun, scheduler);
+        final AutoConnect autoConnect = new AutoConnect(mListener, stack, mFilesDir, scheduler);
+        autoConnect.getRetryPolicy().setJitterSeed(1);
+        stack.setDriver(new ReplayBtStack.Driver() {
+            @Override
+            public void onSessionStart(final String address) {
+                autoConnect.startConnectByAddress(Collections.singletonList(address));
+            }
+
+            @Override
+            public void onPrepare(final String address) {
+                autoConnect.prepare(address);
+            }
+        });
+        scheduler.runUntilIdle();
+        autoConnect.destroy();
+        scheduler.runUntilIdle();
+        return stack.getDivergenceCount();
+    }
+}
@@ -0,0 +1,129 @@
+package com.github.android.bluetooth_autopair.bt_module;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.bluetooth.BluetoothProfile;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+/**
+ * Connects asked for before the profile proxies are bound wait for the
+ * bind callback itself, not for a sleep loop: they go out on the tick the
+ * proxy arrives.
+ */
+public class AutoConnectBindTest {
+
+    private static final String DEVICE = "00:11:22:33:44:55";
+
+    private static final String OTHER_DEVICE = "00:11:22:33:44:66";
+
+    private static final long BIND_MS = 700;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private VirtualScheduler mScheduler;
+
+    private SimulatedBtStack mStack;
+
+    private RecordingListener mListener;
+
+    @Before
+    public void setUp() {
+        mScheduler = new VirtualScheduler();
+        mStack = new SimulatedBtStack(1, mScheduler);
+        mStack.setConnectLatency(300, 300);
+        mStack.addDevice(DEVICE, true);
+        mStack.addDevice(OTHER_DEVICE, true);
+        mListener = new RecordingListener(mScheduler);
+    }
+
+    private AutoConnect create(final long bindMs) throws IOException {
+        mStack.setBindLatency(bindMs);
+        return new AutoConnect(mListener, mStack, mFolder.newFolder(), mScheduler);
+    }
+
+    @Test
+    public void connectWaitingForBindIsIssuedOnTheBindTick() throws Exception {
+        final AutoConnect autoConnect = create(BIND_MS);
+        // asked for before the engine has even started binding
+        autoConnect.startConnectByAddress(Arrays.asList(DEVICE, OTHER_DEVICE));
+        mScheduler.runUntilIdle();
+
+        final ConnectMetrics metrics = autoConnect.getMetrics();
+        assertEquals(BIND_MS, metrics.getPercentile(ConnectMetrics.PHASE_BIND, 50));
+        assertEquals(2, metrics.getCount(ConnectMetrics.PHASE_CONNECT_ISSUED));
+        assertEquals(BIND_MS, metrics.getPercentile(ConnectMetrics.PHASE_CONNECT_ISSUED, 0));
+        assertEquals(BIND_MS, metrics.getPercentile(ConnectMetrics.PHASE_CONNECT_ISSUED, 100));
+        assertTrue(mListener.results.get(DEVICE));
+        assertTrue(mListener.results.get(OTHER_DEVICE));
+    }
+
+    @Test
+    public void connectAfterBindIsIssuedAtOnce() throws Exception {
+        final AutoConnect autoConnect = create(BIND_MS);
+        mScheduler.advance(BIND_MS);
+        assertEquals(AutoConnect.STATE_READY, autoConnect.getState());
+        autoConnect.startConnectByAddress(Collections.singletonList(DEVICE));
+        mScheduler.runUntilIdle();
+
+        assertEquals(0, autoConnect.getMetrics().getPercentile(ConnectMetrics.PHASE_CONNECT_ISSUED, 50));
+        assertTrue(mListener.results.get(DEVICE));
+    }
+
+    @Test
+    public void bindThatNeverCompletesFailsAtTheBindDeadline() throws Exception {
+        final AutoConnect autoConnect = create(60000);
+        final long start = mScheduler.now();
+        autoConnect.startConnectByAddress(Collections.singletonList(DEVICE));
+        mScheduler.advance(30000);
+
+        assertFalse(mListener.results.get(DEVICE));
+        assertEquals(5000, (long) mListener.resultTimes.get(DEVICE) - start);
+        assertEquals(0, autoConnect.getMetrics().getCount(ConnectMetrics.PHASE_CONNECT_ISSUED));
+    }
+
+    @Test
+    public void bindDeadlineRunsFromTheBindNotFromTheRequest() throws Exception {
+        final AutoConnect autoConnect = create(60000);
+        final long start = mScheduler.now();
+        mScheduler.advance(3000);
+        autoConnect.startConnectByAddress(Collections.singletonList(DEVICE));
+        mScheduler.advance(30000);
+
+        assertFalse(mListener.results.get(DEVICE));
+        assertEquals(5000, (long) mListener.resultTimes.get(DEVICE) - start);
+    }
+
+    @Test
+    public void lostHeadsetServiceIsRebound() throws Exception {
+        final AutoConnect autoConnect = create(BIND_MS);
+        autoConnect.setProfiles(new HashSet<Integer>(Arrays.asList(BluetoothProfile.A2DP, BluetoothProfile.HEADSET)));
+        mScheduler.advance(BIND_MS);
+        assertEquals(AutoConnect.STATE_READY, autoConnect.getState());
+        mStack.dropHeadsetService();
+        mScheduler.runUntilIdle();
+
+        assertEquals(AutoConnect.STATE_BINDING, autoConnect.getState());
+    }
+
+    @Test
+    public void lostHeadsetServiceIsIgnoredForA2dpOnly() throws Exception {
+        final AutoConnect autoConnect = create(BIND_MS);
+        mScheduler.advance(BIND_MS);
+        mStack.dropHeadsetService();
+        mScheduler.runUntilIdle();
+
+        assertEquals(AutoConnect.STATE_READY, autoConnect.getState());
+    }
+}
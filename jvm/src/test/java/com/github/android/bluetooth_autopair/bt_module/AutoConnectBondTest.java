@@ -0,0 +1,78 @@
+package com.github.android.bluetooth_autopair.bt_module;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Collections;
+
+/**
+ * Bond completion is taken from the bond state callback, so the connect
+ * follows the bond on the same tick instead of at the next poll.
+ */
+public class AutoConnectBondTest {
+
+    private static final String DEVICE = "00:11:22:33:44:55";
+
+    private static final long BIND_MS = 50;
+
+    private static final long BOND_MS = 1200;
+
+    private static final long CONNECT_MS = 300;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private VirtualScheduler mScheduler;
+
+    private SimulatedBtStack mStack;
+
+    private RecordingListener mListener;
+
+    private AutoConnect mAutoConnect;
+
+    @Before
+    public void setUp() throws Exception {
+        mScheduler = new VirtualScheduler();
+        mStack = new SimulatedBtStack(1, mScheduler);
+        mStack.setBindLatency(BIND_MS);
+        mStack.setBondLatency(BOND_MS, BOND_MS);
+        mStack.setConnectLatency(CONNECT_MS, CONNECT_MS);
+        mStack.addDevice(DEVICE, false);
+        mListener = new RecordingListener(mScheduler);
+        mAutoConnect = new AutoConnect(mListener, mStack, mFolder.newFolder(), mScheduler);
+        mAutoConnect.getRetryPolicy().setJitterSeed(1);
+    }
+
+    @Test
+    public void timeToBondedIsTheBondLatency() {
+        final long start = mScheduler.now();
+        mAutoConnect.startConnectByAddress(Collections.singletonList(DEVICE));
+        mScheduler.runUntilIdle();
+
+        final ConnectMetrics metrics = mAutoConnect.getMetrics();
+        assertTrue(mListener.results.get(DEVICE));
+        assertEquals(BOND_MS, metrics.getPercentile(ConnectMetrics.PHASE_BOND, 50));
+        // bind, then bond, then the connect goes out on the tick the bond completed
+        assertEquals(BIND_MS + BOND_MS, metrics.getPercentile(ConnectMetrics.PHASE_CONNECT_ISSUED, 50));
+        assertEquals(BIND_MS + BOND_MS + CONNECT_MS, (long) mListener.resultTimes.get(DEVICE) - start);
+    }
+
+    @Test
+    public void failedBondIsNotWaitedOut() {
+        mStack.setBondFailureRate(1f);
+        mAutoConnect.startConnectByAddress(Collections.singletonList(DEVICE));
+        mScheduler.runUntilIdle();
+
+        final ConnectMetrics metrics = mAutoConnect.getMetrics();
+        assertFalse(mListener.results.get(DEVICE));
+        // one attempt per PIN, each ended by BOND_NONE rather than the 7 s deadline
+        assertEquals(PairingPinTable.DEFAULT_PINS.size(), metrics.getCount(ConnectMetrics.PHASE_BOND));
+        assertEquals(BOND_MS, metrics.getPercentile(ConnectMetrics.PHASE_BOND, 100));
+    }
+}
@@ -0,0 +1,116 @@
+package com.github.android.bluetooth_autopair.bt_module;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.bluetooth.BluetoothDevice;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A speculative bond that is dropped unconfirmed, at the speculation timeout
+ * or when its bond attempts give up, is undone: removed once bonded,
+ * cancelled while still bonding. The prepare is in the trace, so a replay
+ * makes the same decision.
+ */
+public class AutoConnectSpeculationTest {
+
+    private static final String DEVICE = "00:11:22:33:44:55";
+
+    private static final long SPECULATION_MS = 30000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private VirtualScheduler mScheduler;
+
+    private SimulatedBtStack mStack;
+
+    private File mTrace;
+
+    private AutoConnect mAutoConnect;
+
+    @Before
+    public void setUp() throws Exception {
+        mScheduler = new VirtualScheduler();
+        mStack = new SimulatedBtStack(1, mScheduler);
+        mStack.addDevice(DEVICE, false);
+        mTrace = mFolder.newFile();
+        final FlightRecorder recorder = new FlightRecorder(mTrace, FlightRecorder.DEFAULT_CAPACITY, mScheduler);
+        mAutoConnect = new AutoConnect(new RecordingListener(mScheduler), new RecordingBtStack(mStack, recorder),
+                mFolder.newFolder(), mScheduler);
+        mAutoConnect.setSpeculationWhitelist(Collections.singleton(DEVICE));
+    }
+
+    private int count(final List<FlightRecorder.Record> records, final int type) {
+        return count(records, type, -1);
+    }
+
+    /** Records of {@code type} for the device, only those with {@code arg1} unless it is -1. */
+    private int count(final List<FlightRecorder.Record> records, final int type, final int arg1) {
+        int count = 0;
+        for (final FlightRecorder.Record record : records) {
+            if (record.type == type && DEVICE.equals(record.address) && (arg1 == -1 || record.arg1 == arg1))
+                count++;
+        }
+        return count;
+    }
+
+    private List<FlightRecorder.Record> closeAndRead() throws Exception {
+        mAutoConnect.destroy();
+        mScheduler.runUntilIdle();
+        return FlightRecorder.read(mTrace);
+    }
+
+    @Test
+    public void expiredBondIsRemoved() throws Exception {
+        mStack.setBondLatency(1000, 1000);
+        assertTrue(mAutoConnect.prepare(DEVICE));
+        mScheduler.advance(SPECULATION_MS - 1);
+        assertEquals(BluetoothDevice.BOND_BONDED, mStack.getBondState(DEVICE));
+        mScheduler.advance(1);
+
+        assertEquals(BluetoothDevice.BOND_NONE, mStack.getBondState(DEVICE));
+        final List<FlightRecorder.Record> records = closeAndRead();
+        assertEquals(1, count(records, FlightRecorder.EV_PREPARE));
+        assertEquals(1, count(records, FlightRecorder.OP_REMOVE_BOND));
+        assertEquals(0, count(records, FlightRecorder.OP_CANCEL_BOND));
+    }
+
+    @Test
+    public void abandonedBondInProgressIsCancelled() throws Exception {
+        // outlasts every bond deadline, so the speculation fails while the stack is still bonding
+        mStack.setBondLatency(SPECULATION_MS + 5000, SPECULATION_MS + 5000);
+        assertTrue(mAutoConnect.prepare(DEVICE));
+        mScheduler.advance(SPECULATION_MS);
+        assertEquals(BluetoothDevice.BOND_NONE, mStack.getBondState(DEVICE));
+        // the cancelled bond never completes
+        mScheduler.advance(10000);
+
+        assertEquals(BluetoothDevice.BOND_NONE, mStack.getBondState(DEVICE));
+        final List<FlightRecorder.Record> records = closeAndRead();
+        // each attempt is cancelled at its deadline, so no retry finds the bond still running
+        assertEquals(0, count(records, FlightRecorder.OP_CREATE_BOND, 0));
+        assertEquals(count(records, FlightRecorder.OP_CREATE_BOND, 1), count(records, FlightRecorder.OP_CANCEL_BOND));
+        assertEquals(0, count(records, FlightRecorder.OP_REMOVE_BOND));
+    }
+
+    @Test
+    public void pickedBondIsKept() throws Exception {
+        mStack.setBondLatency(1000, 1000);
+        mAutoConnect.prepare(DEVICE);
+        mScheduler.advance(2000);
+        mAutoConnect.startConnectByAddress(Collections.singletonList(DEVICE));
+        mScheduler.advance(SPECULATION_MS * 2);
+
+        assertEquals(BluetoothDevice.BOND_BONDED, mStack.getBondState(DEVICE));
+        assertEquals(0, count(closeAndRead(), FlightRecorder.OP_REMOVE_BOND));
+    }
+}
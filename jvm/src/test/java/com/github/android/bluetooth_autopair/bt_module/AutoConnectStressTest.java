@@ -0,0 +1,161 @@
+package com.github.android.bluetooth_autopair.bt_module;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.bluetooth.BluetoothDevice;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Public calls from several threads racing {@link AutoConnect#destroy()} on a
+ * real worker thread: nothing may throw, the engine must end up closed with
+ * its thread gone, and no result may be reported once it is closed.
+ */
+public class AutoConnectStressTest {
+
+    private static final int ROUNDS = 100;
+
+    private static final int CALLERS = 4;
+
+    private static final int CALLS = 200;
+
+    private static final int DEVICES = 8;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static final class ClosedCheckingListener implements AutoConnect.Listener {
+
+        volatile AutoConnect autoConnect;
+
+        final AtomicInteger results = new AtomicInteger();
+
+        final AtomicInteger afterClose = new AtomicInteger();
+
+        private void check() {
+            final AutoConnect engine = autoConnect;
+            if (engine != null && engine.getState() == AutoConnect.STATE_CLOSED)
+                afterClose.incrementAndGet();
+        }
+
+        @Override
+        public void onConnectResult(final String address, final boolean success) {
+            check();
+            results.incrementAndGet();
+        }
+
+        @Override
+        public void onBatchComplete(final BatchResult result) {
+            check();
+        }
+    }
+
+    private static String address(final int i) {
+        return String.format("00:5A:00:00:00:%02X", i);
+    }
+
+    @Test
+    public void destroyRacingPublicCalls() throws Exception {
+        final List<String> addresses = new ArrayList<String>();
+        for (int i = 0; i < DEVICES; i++)
+            addresses.add(address(i));
+        final Random random = new Random(1);
+        int results = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            final ThreadScheduler scheduler = new ThreadScheduler("WorkerThread-" + round);
+            final SimulatedBtStack stack = new SimulatedBtStack(round, scheduler);
+            stack.setBindLatency(1);
+            stack.setBondLatency(1, 5);
+            stack.setConnectLatency(1, 5);
+            stack.setBondFailureRate(0.2f);
+            stack.setConnectFailureRate(0.2f);
+            for (int i = 0; i < DEVICES; i++)
+                stack.addDevice(addresses.get(i), i % 2 == 0);
+            final ClosedCheckingListener listener = new ClosedCheckingListener();
+            final AutoConnect autoConnect = new AutoConnect(listener, stack, mFolder.newFolder(), scheduler);
+            listener.autoConnect = autoConnect;
+            autoConnect.setSpeculationWhitelist(new HashSet<String>(addresses));
+
+            final CountDownLatch go = new CountDownLatch(1);
+            final AtomicReference<Throwable> callerFailure = new AtomicReference<Throwable>();
+            final List<Thread> threads = new ArrayList<Thread>();
+            for (int c = 0; c < CALLERS; c++) {
+                final long seed = random.nextLong();
+                threads.add(new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        final Random callerRandom = new Random(seed);
+                        try {
+                            go.await();
+                            for (int i = 0; i < CALLS; i++) {
+                                final String address = addresses.get(callerRandom.nextInt(DEVICES));
+                                final BluetoothDevice device = new BluetoothDevice(address);
+                                switch (callerRandom.nextInt(5)) {
+                                    case 0:
+                                        autoConnect.startConnectByAddress(Collections.singletonList(address));
+                                        break;
+                                    case 1:
+                                        autoConnect.startConnectByAddress(addresses);
+                                        break;
+                                    case 2:
+                                        autoConnect.cancel(device);
+                                        break;
+                                    case 3:
+                                        autoConnect.prepare(address);
+                                        break;
+                                    default:
+                                        autoConnect.watch(device);
+                                        break;
+                                }
+                                if (callerRandom.nextInt(20) == 0)
+                                    Thread.sleep(1);
+                            }
+                        } catch (final Throwable t) {
+                            callerFailure.compareAndSet(null, t);
+                        }
+                    }
+                }, "Caller-" + c));
+            }
+            final long destroyAfterMs = random.nextInt(20);
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        go.await();
+                        Thread.sleep(destroyAfterMs);
+                        autoConnect.destroy();
+                    } catch (final Throwable t) {
+                        callerFailure.compareAndSet(null, t);
+                    }
+                }
+            }, "Destroyer"));
+            for (final Thread thread : threads)
+                thread.start();
+            go.countDown();
+            for (final Thread thread : threads)
+                thread.join();
+
+            assertTrue("worker thread still running in round " + round, scheduler.join(5000));
+            assertNull(callerFailure.get());
+            assertNull(scheduler.getFailure());
+            assertEquals(AutoConnect.STATE_CLOSED, autoConnect.getState());
+            assertEquals("results after close in round " + round, 0, listener.afterClose.get());
+            results += listener.results.get();
+        }
+        // the races ran against live sessions, not only against an idle engine
+        assertTrue(results > 0);
+    }
+}
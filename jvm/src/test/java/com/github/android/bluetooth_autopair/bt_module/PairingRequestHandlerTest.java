@@ -0,0 +1,104 @@
+package com.github.android.bluetooth_autopair.bt_module;
+
+import static org.junit.Assert.assertEquals;
+
+import android.bluetooth.BluetoothDevice;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * A request the handler answers never reaches Settings. One the platform
+ * refuses to let it answer goes on to Settings untouched, so the user gets
+ * the dialog; only a request no PIN can answer is cancelled.
+ */
+public class PairingRequestHandlerTest {
+
+    private static final String DEVICE = "00:11:22:33:44:55";
+
+    private static final String EXTRA_PAIRING_VARIANT = "android.bluetooth.device.extra.PAIRING_VARIANT";
+
+    private static final int PAIRING_VARIANT_PIN = 0;
+
+    private static final int PAIRING_VARIANT_PASSKEY_CONFIRMATION = 2;
+
+    private Context mContext;
+
+    private PairingRequestHandler mHandler;
+
+    private BluetoothDevice mDevice;
+
+    /** Requests that got past the handler to the system dialog. */
+    private int mDialogs;
+
+    private int mCancels;
+
+    @Before
+    public void setUp() {
+        mContext = new Context();
+        mHandler = new PairingRequestHandler(mContext, new HiddenBluetoothApi() {
+            @Override
+            public boolean cancelPairingUserInput(final BluetoothDevice device) {
+                mCancels++;
+                return true;
+            }
+
+            @Override
+            public boolean cancelBondProcess(final BluetoothDevice device) {
+                mCancels++;
+                return true;
+            }
+        });
+        mHandler.start(null);
+        mContext.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(final Context context, final Intent intent) {
+                mDialogs++;
+            }
+        }, new IntentFilter(PairingRequestHandler.ACTION_PAIRING_REQUEST));
+        mDevice = new BluetoothDevice(DEVICE);
+    }
+
+    private void request(final int variant) {
+        mContext.sendOrderedBroadcast(new Intent(PairingRequestHandler.ACTION_PAIRING_REQUEST)
+                .putExtra(BluetoothDevice.EXTRA_DEVICE, (Object) mDevice)
+                .putExtra(EXTRA_PAIRING_VARIANT, variant), null);
+    }
+
+    @Test
+    public void answeredConfirmationIsConsumed() {
+        mHandler.setTarget(DEVICE, "0000");
+        request(PAIRING_VARIANT_PASSKEY_CONFIRMATION);
+
+        assertEquals(0, mDialogs);
+        assertEquals(0, mCancels);
+    }
+
+    @Test
+    public void refusedConfirmationIsLeftToTheDialog() {
+        mHandler.setTarget(DEVICE, "0000");
+        mDevice.setPairingAnswersRefused(true);
+        request(PAIRING_VARIANT_PASSKEY_CONFIRMATION);
+
+        assertEquals(1, mDialogs);
+        assertEquals(0, mCancels);
+
+        // the target is cleared, so a repeat is not answered even when it could be
+        mDevice.setPairingAnswersRefused(false);
+        request(PAIRING_VARIANT_PASSKEY_CONFIRMATION);
+        assertEquals(2, mDialogs);
+    }
+
+    @Test
+    public void missingPinIsCancelled() {
+        mHandler.setTarget(DEVICE, null);
+        request(PAIRING_VARIANT_PIN);
+
+        assertEquals(0, mDialogs);
+        assertEquals(2, mCancels);
+    }
+}
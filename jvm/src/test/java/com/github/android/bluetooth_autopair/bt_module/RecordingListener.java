@@ -0,0 +1,33 @@
+package com.github.android.bluetooth_autopair.bt_module;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Keeps every result the engine reports, with the virtual time it came at. */
+class RecordingListener implements AutoConnect.Listener {
+
+    final Map<String, Boolean> results = new LinkedHashMap<String, Boolean>();
+
+    final Map<String, Long> resultTimes = new LinkedHashMap<String, Long>();
+
+    final List<BatchResult> batches = new ArrayList<BatchResult>();
+
+    private final Scheduler mScheduler;
+
+    RecordingListener(final Scheduler scheduler) {
+        mScheduler = scheduler;
+    }
+
+    @Override
+    public void onConnectResult(final String address, final boolean success) {
+        results.put(address, success);
+        resultTimes.put(address, mScheduler.now());
+    }
+
+    @Override
+    public void onBatchComplete(final BatchResult result) {
+        batches.add(result);
+    }
+}
@@ -0,0 +1,89 @@
+package com.github.android.bluetooth_autopair.bt_module;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A run recorded off the simulated stack, played back into a fresh engine on
+ * a fresh virtual clock, reproduces the same calls and the same results at
+ * the same times.
+ */
+public class ReplayBtStackTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /** Records one simulated run of {@code devices} devices into {@code trace}. */
+    private RecordingListener record(final File trace, final long seed, final int devices) throws Exception {
+        final VirtualScheduler scheduler = new VirtualScheduler();
+        final SimulatedBtStack stack = new SimulatedBtStack(seed, scheduler);
+        stack.setBondFailureRate(0.3f);
+        stack.setConnectFailureRate(0.3f);
+        final List<String> addresses = new ArrayList<String>(stack.populate(devices, 0.5f));
+        Collections.sort(addresses);
+        final FlightRecorder recorder = new FlightRecorder(trace, FlightRecorder.DEFAULT_CAPACITY, scheduler);
+        final RecordingListener listener = new RecordingListener(scheduler);
+        final AutoConnect autoConnect = new AutoConnect(listener, new RecordingBtStack(stack, recorder),
+                mFolder.newFolder(), scheduler);
+        autoConnect.getRetryPolicy().setJitterSeed(1);
+        autoConnect.startConnectByAddress(addresses);
+        scheduler.runUntilIdle();
+        autoConnect.destroy();
+        scheduler.runUntilIdle();
+        return listener;
+    }
+
+    @Test
+    public void splitRunsCutsAtEachOpen() throws Exception {
+        final File trace = mFolder.newFile();
+        record(trace, 1, 2);
+        record(trace, 2, 3);
+
+        final List<List<FlightRecorder.Record>> runs = ReplayBtStack.splitRuns(FlightRecorder.read(trace));
+        assertEquals(2, runs.size());
+        for (final List<FlightRecorder.Record> run : runs) {
+            assertEquals(FlightRecorder.OP_OPEN, run.get(0).type);
+            assertEquals(FlightRecorder.OP_CLOSE, run.get(run.size() - 1).type);
+        }
+    }
+
+    @Test
+    public void replayReproducesTheRecordedRun() throws Exception {
+        final File trace = mFolder.newFile();
+        record(trace, 1, 2);
+        final RecordingListener recorded = record(trace, 2, 6);
+        assertFalse(recorded.results.isEmpty());
+
+        final List<FlightRecorder.Record> run = ReplayBtStack.splitRuns(FlightRecorder.read(trace)).get(1);
+        final VirtualScheduler scheduler = new VirtualScheduler();
+        final ReplayBtStack stack = new ReplayBtStack(run, scheduler);
+        final RecordingListener replayed = new RecordingListener(scheduler);
+        final AutoConnect autoConnect = new AutoConnect(replayed, stack, mFolder.newFolder(), scheduler);
+        autoConnect.getRetryPolicy().setJitterSeed(1);
+        stack.setDriver(new ReplayBtStack.Driver() {
+            @Override
+            public void onSessionStart(final String address) {
+                autoConnect.startConnectByAddress(Collections.singletonList(address));
+            }
+
+            @Override
+            public void onPrepare(final String address) {
+                autoConnect.prepare(address);
+            }
+        });
+        scheduler.runUntilIdle();
+
+        assertEquals(0, stack.getDivergenceCount());
+        assertEquals(recorded.results, replayed.results);
+        assertEquals(recorded.resultTimes, replayed.resultTimes);
+    }
+}
@@ -0,0 +1,167 @@
+package com.github.android.bluetooth_autopair.bt_module;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * {@link Scheduler} on one real thread with the wall clock, what
+ * LooperScheduler is on a device. Remembers the first exception a task
+ * throws and keeps going, so a test can assert there was none.
+ */
+class ThreadScheduler implements Scheduler {
+
+    private static final class Task implements Comparable<Task> {
+
+        final long time;
+
+        final long seq;
+
+        final int what;
+
+        final int arg1;
+
+        final Object obj;
+
+        final Runnable runnable;
+
+        Task(final long time, final long seq, final int what, final int arg1, final Object obj,
+                final Runnable runnable) {
+            this.time = time;
+            this.seq = seq;
+            this.what = what;
+            this.arg1 = arg1;
+            this.obj = obj;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public int compareTo(final Task other) {
+            if (time != other.time)
+                return time < other.time ? -1 : 1;
+            return seq < other.seq ? -1 : (seq == other.seq ? 0 : 1);
+        }
+    }
+
+    private final PriorityQueue<Task> mQueue = new PriorityQueue<Task>();
+
+    private final Thread mThread;
+
+    private volatile Target mTarget;
+
+    private volatile Throwable mFailure;
+
+    private long mSeq = 0;
+
+    private boolean mQuit = false;
+
+    ThreadScheduler(final String name) {
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, name);
+        mThread.start();
+    }
+
+    private void loop() {
+        while (true) {
+            final Task task;
+            synchronized (this) {
+                while (true) {
+                    if (mQuit)
+                        return;
+                    final Task head = mQueue.peek();
+                    final long wait = head == null ? 0 : head.time - now();
+                    if (head != null && wait <= 0) {
+                        task = mQueue.poll();
+                        break;
+                    }
+                    try {
+                        wait(wait);
+                    } catch (final InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+            try {
+                if (task.runnable != null) {
+                    task.runnable.run();
+                } else if (mTarget != null) {
+                    mTarget.handleMessage(task.what, task.arg1, task.obj);
+                }
+            } catch (final Throwable t) {
+                if (mFailure == null)
+                    mFailure = t;
+            }
+        }
+    }
+
+    Throwable getFailure() {
+        return mFailure;
+    }
+
+    boolean join(final long timeoutMs) throws InterruptedException {
+        mThread.join(timeoutMs);
+        return !mThread.isAlive();
+    }
+
+    @Override
+    public long now() {
+        return System.nanoTime() / 1000000L;
+    }
+
+    @Override
+    public void setTarget(final Target target) {
+        mTarget = target;
+    }
+
+    private synchronized void enqueue(final long delayMs, final int what, final int arg1, final Object obj,
+            final Runnable runnable) {
+        if (mQuit)
+            return;
+        mQueue.add(new Task(now() + Math.max(0, delayMs), mSeq++, what, arg1, obj, runnable));
+        notifyAll();
+    }
+
+    @Override
+    public void sendMessage(final int what, final int arg1, final Object obj, final long delayMs) {
+        enqueue(delayMs, what, arg1, obj, null);
+    }
+
+    @Override
+    public synchronized void removeMessages(final int what, final Object obj) {
+        final Iterator<Task> iterator = mQueue.iterator();
+        while (iterator.hasNext()) {
+            final Task task = iterator.next();
+            if (task.runnable == null && task.what == what && (obj == null || task.obj == obj))
+                iterator.remove();
+        }
+    }
+
+    @Override
+    public void post(final Runnable runnable, final long delayMs) {
+        enqueue(delayMs, 0, 0, null, runnable);
+    }
+
+    @Override
+    public synchronized void removeCallbacks(final Runnable runnable) {
+        final Iterator<Task> iterator = mQueue.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().runnable == runnable)
+                iterator.remove();
+        }
+    }
+
+    @Override
+    public synchronized void removeAll() {
+        mQueue.clear();
+    }
+
+    @Override
+    public synchronized void quit() {
+        mQuit = true;
+        mQueue.clear();
+        notifyAll();
+    }
+}
@@ -0,0 +1,43 @@
+package com.github.android.bluetooth_autopair.jvm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.github.android.bluetooth_autopair.bt_module.ConnectMetrics;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LoadHarnessTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static LoadHarness.Config config(final int sessions) {
+        final LoadHarness.Config config = new LoadHarness.Config();
+        config.sessions = sessions;
+        return config;
+    }
+
+    @Test
+    public void everySessionIsReportedOnce() throws Exception {
+        final LoadHarness.Config config = config(2000);
+        final LoadHarness.Result result = LoadHarness.run(config, mFolder.newFolder());
+        assertEquals(2000, result.successes + result.failures);
+        assertEquals(2000 / config.batchSize, result.batches);
+        // 5% bond and connect failures, most of them recovered by a retry
+        assertTrue(result.successes > 1800);
+        assertEquals(result.successes, result.metrics.getCount(ConnectMetrics.PHASE_TOTAL));
+    }
+
+    @Test
+    public void sameSeedSameRun() throws Exception {
+        final LoadHarness.Result first = LoadHarness.run(config(500), mFolder.newFolder());
+        final LoadHarness.Result second = LoadHarness.run(config(500), mFolder.newFolder());
+        assertEquals(first.successes, second.successes);
+        assertEquals(first.virtualMs, second.virtualMs);
+        assertEquals(first.metrics.getPercentile(ConnectMetrics.PHASE_TOTAL, 90),
+                second.metrics.getPercentile(ConnectMetrics.PHASE_TOTAL, 90));
+    }
+}
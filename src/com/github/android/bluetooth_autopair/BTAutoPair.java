@@ -3,10 +3,15 @@ package com.github.android.bluetooth_autopair;
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
+import android.content.ComponentName;
+import android.content.Context;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.IBinder;
 import android.os.Message;
+import android.os.RemoteException;
 import android.util.Log;
 import android.view.View;
 import android.widget.ArrayAdapter;
@@ -14,7 +19,12 @@ import android.widget.Button;
 import android.widget.ListView;
 import android.widget.Toast;
 
-import com.github.android.bluetooth_autopair.bt_module.AutoConnect;
+import com.github.android.bluetooth_autopair.bt_module.AutoConnectService;
+import com.github.android.bluetooth_autopair.bt_module.DiscoveryFilter;
+import com.github.android.bluetooth_autopair.bt_module.IAutoConnectCallback;
+import com.github.android.bluetooth_autopair.bt_module.IAutoConnectService;
+
+import java.util.Collections;
 
 public class BTAutoPair extends Activity {
 
@@ -24,6 +34,9 @@ public class BTAutoPair extends Activity {
 
     private static final int REQUEST_ENABLE_BT = 2;
 
+    /** Auto-pick threshold for a long press; roughly the same room. */
+    private static final int AUTO_PICK_MIN_RSSI = -70;
+
     private BluetoothDevice mBluetoothDevice = null;
 
     private ListView mDeviceListView;
@@ -34,11 +47,22 @@ public class BTAutoPair extends Activity {
 
     private final MyHandler mHandler = new MyHandler();
     
-    private AutoConnect mAutoConnect = null;
+    private IAutoConnectService mService = null;
+
+    private boolean mServiceBound = false;
+
+    /**
+     * Device picked before the service connection came up, e.g. when the
+     * result arrives in an Activity recreated by a rotation; sent from
+     * {@link ServiceConnection#onServiceConnected}.
+     */
+    private String mPendingConnectAddress = null;
     
     public static final int MSG_CONNECT_SUCCESS = 1;
     
     public static final int MSG_CONNECT_FAIL = -1;
+
+    public static final int MSG_BATCH_COMPLETE = 2;
     
     private class MyHandler extends Handler {
 
@@ -46,19 +70,75 @@ public class BTAutoPair extends Activity {
         public void handleMessage(Message msg){
            switch(msg.what){
                case MSG_CONNECT_SUCCESS:
+                   final BluetoothDevice device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice((String) msg.obj);
                    mDevicelistAdapter.clear();
-                   mDevicelistAdapter.add("Connected device :"+mBluetoothDevice.getName()+ " ; "+mBluetoothDevice.getAddress());
+                   mDevicelistAdapter.add("Connected device :"+device.getName()+ " ; "+device.getAddress());
                    mDevicelistAdapter.notifyDataSetChanged();
+                   if (mService != null) {
+                       try {
+                           mService.watch(device.getAddress());
+                       } catch (final RemoteException e) {
+                           e.printStackTrace();
+                       }
+                   }
                    break;
                case MSG_CONNECT_FAIL:
                    mDevicelistAdapter.clear();
                    mDevicelistAdapter.add("FAIL to Connected device!");
                    mDevicelistAdapter.notifyDataSetChanged();
                    break;
+               case MSG_BATCH_COMPLETE:
+                   Log.i(TAG, "batch complete: " + msg.obj);
+                   if (mService != null) {
+                       try {
+                           Log.i(TAG, "connect latency: " + mService.getMetricsJson());
+                       } catch (final RemoteException e) {
+                           e.printStackTrace();
+                       }
+                   }
+                   break;
            }
         }
 
     }
+
+    private final IAutoConnectCallback.Stub mCallback = new IAutoConnectCallback.Stub() {
+
+        @Override
+        public void onConnectResult(final String address, final boolean success) {
+            mHandler.obtainMessage(success ? MSG_CONNECT_SUCCESS : MSG_CONNECT_FAIL, address).sendToTarget();
+        }
+
+        @Override
+        public void onBatchComplete(final String resultJson) {
+            mHandler.obtainMessage(MSG_BATCH_COMPLETE, resultJson).sendToTarget();
+        }
+    };
+
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
+
+        @Override
+        public void onServiceConnected(final ComponentName name, final IBinder binder) {
+            Log.d(TAG, "AutoConnectService connected");
+            mService = IAutoConnectService.Stub.asInterface(binder);
+            try {
+                mService.registerCallback(mCallback);
+            } catch (final RemoteException e) {
+                e.printStackTrace();
+            }
+            if (mPendingConnectAddress != null) {
+                final String address = mPendingConnectAddress;
+                mPendingConnectAddress = null;
+                connect(address);
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(final ComponentName name) {
+            Log.w(TAG, "AutoConnectService disconnected");
+            mService = null;
+        }
+    };
     
     @Override
     public void onCreate(final Bundle savedInstanceState) {
@@ -111,14 +191,20 @@ public class BTAutoPair extends Activity {
     public void onDestroy() {
         super.onDestroy();
         Log.d(TAG, "onDestroy");
-        if(mAutoConnect != null){
+        if (mService != null) {
             try {
-                mAutoConnect.destroy();
-            } catch (final Exception e) {
-                // TODO Auto-generated catch block
+                mService.unregisterCallback(mCallback);
+            } catch (final RemoteException e) {
                 e.printStackTrace();
             }
-            mAutoConnect = null;
+            mService = null;
+        }
+        if (mServiceBound) {
+            unbindService(mServiceConnection);
+            mServiceBound = false;
+            // keep the service, and any pairing in flight, across rotation
+            if (isFinishing())
+                stopService(new Intent(this, AutoConnectService.class));
         }
     }
 
@@ -129,12 +215,19 @@ public class BTAutoPair extends Activity {
             case REQUEST_SELECT_DEVICE:
                 if (resultCode == Activity.RESULT_OK && data != null) {
                     final String deviceAddress = data.getStringExtra(BluetoothDevice.EXTRA_DEVICE);
+                    if (data.hasExtra(DeviceListActivity.EXTRA_TIME_TO_MATCH))
+                        Log.i(TAG, "target matched in " + data.getLongExtra(DeviceListActivity.EXTRA_TIME_TO_MATCH, -1) + " ms");
                     mBluetoothDevice = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(deviceAddress);
                     if(mBluetoothDevice == null) return;
                     mDevicelistAdapter.clear();
                     mDevicelistAdapter.add("Connecting to device , plz wait~");
                     mDevicelistAdapter.notifyDataSetChanged();
-                    mAutoConnect.startConnect(mBluetoothDevice);
+                    if (mService == null) {
+                        Log.w(TAG, "AutoConnectService not bound yet, connect when it is");
+                        mPendingConnectAddress = deviceAddress;
+                        return;
+                    }
+                    connect(deviceAddress);
                 }
                 break;
             case REQUEST_ENABLE_BT:
@@ -152,6 +245,27 @@ public class BTAutoPair extends Activity {
         }
     }
 
+    private void connect(final String address) {
+        try {
+            mService.connect(Collections.singletonList(address));
+        } catch (final RemoteException e) {
+            e.printStackTrace();
+            mHandler.obtainMessage(MSG_CONNECT_FAIL, address).sendToTarget();
+        }
+    }
+
+    /** @return the device that last connected, or null when unknown or the service is not bound yet. */
+    private String getLastKnownAddress() {
+        if (mService == null)
+            return null;
+        try {
+            return mService.getLastKnownAddress();
+        } catch (final RemoteException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
     private void init(){
         mDevicelistAdapter = new ArrayAdapter<String>(this, R.layout.device_detail);
         mDeviceListView = (ListView) findViewById(R.id.listDevice);
@@ -174,6 +288,27 @@ public class BTAutoPair extends Activity {
                 }
             }
         });
-        mAutoConnect = new AutoConnect(this,mHandler);
+        // Long press: connect without picking from the list. The device that
+        // connected last is taken the moment discovery hears it; without one,
+        // the strongest nearby audio device.
+        mConnectionButton.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(final View v) {
+                if (!BluetoothAdapter.getDefaultAdapter().isEnabled())
+                    return false;
+                final Intent newIntent = new Intent(BTAutoPair.this, DeviceListActivity.class);
+                final String lastKnownAddress = getLastKnownAddress();
+                if (lastKnownAddress != null) {
+                    new DiscoveryFilter(lastKnownAddress, null, DiscoveryFilter.ANY_CLASS).writeToIntent(newIntent);
+                } else {
+                    newIntent.putExtra(DeviceListActivity.EXTRA_AUTO_PICK_MIN_RSSI, AUTO_PICK_MIN_RSSI);
+                }
+                startActivityForResult(newIntent, REQUEST_SELECT_DEVICE);
+                return true;
+            }
+        });
+        final Intent serviceIntent = new Intent(this, AutoConnectService.class);
+        startService(serviceIntent);
+        mServiceBound = bindService(serviceIntent, mServiceConnection, Context.BIND_AUTO_CREATE);
     }
 }
@@ -20,11 +20,17 @@ import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.ServiceConnection;
 import android.graphics.Color;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -39,8 +45,18 @@ import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.github.android.bluetooth_autopair.bt_module.AutoConnectService;
+import com.github.android.bluetooth_autopair.bt_module.DeviceResolver;
+import com.github.android.bluetooth_autopair.bt_module.DiscoveryCache;
+import com.github.android.bluetooth_autopair.bt_module.DeviceSnapshot;
+import com.github.android.bluetooth_autopair.bt_module.DiscoveryFilter;
+import com.github.android.bluetooth_autopair.bt_module.IAutoConnectService;
+import com.github.android.bluetooth_autopair.bt_module.RankedDeviceList;
+
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 public class DeviceListActivity extends Activity {
 
@@ -48,12 +64,123 @@ public class DeviceListActivity extends Activity {
 
     private final BluetoothAdapter mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
 
-    private List<BluetoothDevice> mDeviceList;
+    /** Roughly one frame; found devices arriving within it share one list refresh. */
+    private static final int LIST_UPDATE_INTERVAL = 16;
+
+    /**
+     * A full inquiry runs 10.24 s; one that ends sooner was cancelled, e.g. by
+     * a bond, and says nothing about which cached devices are gone.
+     */
+    private static final int FULL_INQUIRY_TIME = 10000;
+
+    private final DiscoveryCache mDiscoveryCache = DiscoveryCache.getInstance();
+
+    /** Listed devices, strongest signal first, keyed by address for de-duplication. */
+    private final RankedDeviceList mDevices = new RankedDeviceList();
 
     private DeviceAdapter mDeviceAdapter;
 
+    private ListView mDeviceListView;
+
+    /** Result extra: ms from starting discovery until the target matched. */
+    public static final String EXTRA_TIME_TO_MATCH = "com.github.android.bluetooth_autopair.TIME_TO_MATCH";
+
+    /**
+     * Optional int extra, in dBm. When set, the strongest audio device heard
+     * at or above this RSSI is returned without a click.
+     */
+    public static final String EXTRA_AUTO_PICK_MIN_RSSI = "com.github.android.bluetooth_autopair.AUTO_PICK_MIN_RSSI";
+
+    private static final int AUTO_PICK_OFF = Integer.MIN_VALUE;
+
+    /** How long to keep listening after the first candidate, in case a stronger one answers. */
+    private static final int AUTO_PICK_SETTLE_TIME = 2000;
+
+    private int mAutoPickMinRssi = AUTO_PICK_OFF;
+
+    private boolean mAutoPickPending = false;
+
     private volatile boolean mScanning;
 
+    private boolean mReceiverRegistered = false;
+
+    /** Set when launched with {@link DiscoveryFilter} extras; the first match is returned. */
+    private DiscoveryFilter mTargetFilter;
+
+    private long mDiscoveryStartTime;
+
+    private final Handler mHandler = new Handler();
+
+    /** Lets known sinks start bonding as soon as they are found; null until bound. */
+    private IAutoConnectService mService = null;
+
+    private boolean mServiceBound = false;
+
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
+
+        @Override
+        public void onServiceConnected(final ComponentName name, final IBinder binder) {
+            mService = IAutoConnectService.Stub.asInterface(binder);
+        }
+
+        @Override
+        public void onServiceDisconnected(final ComponentName name) {
+            mService = null;
+        }
+    };
+
+    private boolean mListUpdatePending = false;
+
+    /** Rows added or reordered since the last refresh; needs a full rebind. */
+    private boolean mListOrderChanged = false;
+
+    /** Devices whose row content changed in place since the last refresh. */
+    private final Set<DeviceSnapshot> mChangedDevices = new HashSet<DeviceSnapshot>();
+
+    private final DeviceResolver.Listener mResolverListener = new DeviceResolver.Listener() {
+
+        @Override
+        public void onResolved(final DeviceSnapshot snapshot) {
+            Log.v(TAG, "resolved " + snapshot.getAddress() + " name = " + snapshot.getName()
+                    + " audio sink = " + snapshot.isAudioSink());
+            if (mDevices.get(snapshot.getAddress()) != null)
+                return;
+            if (mTargetFilter != null && mTargetFilter.matches(snapshot)) {
+                onTargetFound(snapshot);
+                return;
+            }
+            showDevice(snapshot);
+        }
+    };
+
+    /** Nameless inquiry results wait here until their name or SDP record arrives. */
+    private final DeviceResolver mResolver = new DeviceResolver(mHandler, mResolverListener);
+
+    private final Runnable mListUpdateRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            mListUpdatePending = false;
+            if (mListOrderChanged) {
+                mDeviceAdapter.notifyDataSetChanged();
+            } else {
+                for (final DeviceSnapshot snapshot : mChangedDevices)
+                    redrawRow(snapshot);
+            }
+            mListOrderChanged = false;
+            mChangedDevices.clear();
+        }
+    };
+
+    private final Runnable mAutoPickRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            mAutoPickPending = false;
+            autoPick();
+        }
+    };
+
     @Override
     protected void onCreate(final Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -70,6 +197,11 @@ public class DeviceListActivity extends Activity {
             finish();
             return;
         }
+        mTargetFilter = DiscoveryFilter.fromIntent(getIntent());
+        mAutoPickMinRssi = getIntent().getIntExtra(EXTRA_AUTO_PICK_MIN_RSSI, AUTO_PICK_OFF);
+        if (mTargetFilter != null)
+            Log.d(TAG, "targeted discovery " + mTargetFilter);
+        mServiceBound = bindService(new Intent(this, AutoConnectService.class), mServiceConnection, 0);
         initList();
         final Button cancelButton = (Button) findViewById(R.id.btn_cancel);
         cancelButton.setOnClickListener(new OnClickListener() {
@@ -95,17 +227,42 @@ public class DeviceListActivity extends Activity {
 
                 if (action.equals(BluetoothDevice.ACTION_FOUND)) {
                     final BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-                    if (device != null && device.getName() != null) {
-                        Log.v(TAG, "device name = " + device.getName() + " device bond state = " + device.getBondState());
-                        runOnUiThread(new Runnable() {
-                            @Override
-                            public void run() {
-                                addDevice(device);
-                            }
-                        });
+                    if (device != null) {
+                        addDevice(device, intent);
+                    }
+                } else if (action.equals(BluetoothDevice.ACTION_NAME_CHANGED)) {
+                    final BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+                    final DeviceSnapshot snapshot = device != null ? mDevices.get(device.getAddress()) : null;
+                    final String name = intent.getStringExtra(BluetoothDevice.EXTRA_NAME);
+                    if (snapshot != null && name != null) {
+                        snapshot.setName(name);
+                        if (snapshot.isConfirmed())
+                            mDiscoveryCache.put(snapshot);
+                        scheduleRowUpdate(snapshot);
+                    } else if (device != null) {
+                        mResolver.onNameChanged(device.getAddress(), name);
+                    }
+                } else if (action.equals(BluetoothDevice.ACTION_UUID)) {
+                    final BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+                    if (device != null)
+                        mResolver.onUuids(device.getAddress(), intent.getParcelableArrayExtra(BluetoothDevice.EXTRA_UUID));
+                } else if (action.equals(BluetoothDevice.ACTION_BOND_STATE_CHANGED)) {
+                    final BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+                    final DeviceSnapshot snapshot = device != null ? mDevices.get(device.getAddress()) : null;
+                    if (snapshot != null) {
+                        snapshot.setBondState(intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE, BluetoothDevice.BOND_NONE));
+                        if (snapshot.isConfirmed())
+                            mDiscoveryCache.put(snapshot);
+                        scheduleRowUpdate(snapshot);
                     }
                 } else if (action.equals(BluetoothAdapter.ACTION_DISCOVERY_FINISHED)) {
                     Log.v(TAG, "ACTION_DISCOVERY_FINISHED");
+                    mScanning = false;
+                    ((Button) findViewById(R.id.btn_cancel)).setText(R.string.scan);
+                    if (SystemClock.elapsedRealtime() - mDiscoveryStartTime >= FULL_INQUIRY_TIME)
+                        dropUnconfirmedDevices();
+                    if (mAutoPickMinRssi != AUTO_PICK_OFF)
+                        autoPick();
                 }
             } catch (final Exception e) {
                 e.printStackTrace();
@@ -115,17 +272,41 @@ public class DeviceListActivity extends Activity {
 
     private void initList() {
         Log.d(TAG, "initList");
-        mDeviceList = new ArrayList<BluetoothDevice>();
-        mDeviceAdapter = new DeviceAdapter(this, mDeviceList);
+        mDevices.clear();
+        mDeviceAdapter = new DeviceAdapter(this, mDevices);
+
+        mDeviceListView = (ListView) findViewById(R.id.new_devices);
+        mDeviceListView.setAdapter(mDeviceAdapter);
+        mDeviceListView.setOnItemClickListener(mDeviceClickListener);
 
-        final ListView newDevicesListView = (ListView) findViewById(R.id.new_devices);
-        newDevicesListView.setAdapter(mDeviceAdapter);
-        newDevicesListView.setOnItemClickListener(mDeviceClickListener);
+        // show what recent inquiries heard right away; this inquiry confirms or drops them
+        final long start = SystemClock.elapsedRealtime();
+        for (final DeviceSnapshot snapshot : mDiscoveryCache.snapshot())
+            mDevices.add(snapshot);
+        mDeviceAdapter.notifyDataSetChanged();
+        Log.v(TAG, mDevices.size() + " cached devices shown in " + (SystemClock.elapsedRealtime() - start) + " ms");
 
         scanBTDevice(true);
 
     }
 
+    /** Removes cached rows a complete inquiry did not hear, from the list and the cache. */
+    private void dropUnconfirmedDevices() {
+        final List<DeviceSnapshot> stale = new ArrayList<DeviceSnapshot>();
+        for (int i = 0; i < mDevices.size(); i++) {
+            if (!mDevices.get(i).isConfirmed())
+                stale.add(mDevices.get(i));
+        }
+        if (stale.isEmpty())
+            return;
+        for (final DeviceSnapshot snapshot : stale) {
+            mDevices.remove(snapshot);
+            mDiscoveryCache.remove(snapshot.getAddress());
+        }
+        Log.v(TAG, "dropped " + stale.size() + " cached devices");
+        scheduleListUpdate();
+    }
+
     private void scanBTDevice(final boolean enable) {
         Log.v(TAG, "scanBTDevice");
         final Button cancelButton = (Button) findViewById(R.id.btn_cancel);
@@ -134,13 +315,24 @@ public class DeviceListActivity extends Activity {
                 mBluetoothAdapter.cancelDiscovery();
             }
             mScanning = true;
-            final IntentFilter filter = new IntentFilter(BluetoothDevice.ACTION_FOUND);
-            filter.addAction(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
-            registerReceiver(mBluetoothDeviceFoundReceiver, filter);
+            if (!mReceiverRegistered) {
+                final IntentFilter filter = new IntentFilter(BluetoothDevice.ACTION_FOUND);
+                filter.addAction(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
+                filter.addAction(BluetoothDevice.ACTION_NAME_CHANGED);
+                filter.addAction(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
+                filter.addAction(BluetoothDevice.ACTION_UUID);
+                registerReceiver(mBluetoothDeviceFoundReceiver, filter);
+                mReceiverRegistered = true;
+            }
+            mDiscoveryStartTime = SystemClock.elapsedRealtime();
             mBluetoothAdapter.startDiscovery();
             cancelButton.setText(R.string.cancel);
         } else {
-            unregisterReceiver(mBluetoothDeviceFoundReceiver);
+            if (mReceiverRegistered) {
+                unregisterReceiver(mBluetoothDeviceFoundReceiver);
+                mReceiverRegistered = false;
+            }
+            mResolver.clear();
             if (mBluetoothAdapter.isDiscovering()) {
                 mBluetoothAdapter.cancelDiscovery();
             }
@@ -149,22 +341,156 @@ public class DeviceListActivity extends Activity {
         }
     }
 
-    private void addDevice(final BluetoothDevice device) {
-        boolean deviceFound = false;
-
-        for (final BluetoothDevice listDev : mDeviceList) {
-            if (listDev.getAddress().equals(device.getAddress())) {
-                deviceFound = true;
-                break;
+    /**
+     * Called on the UI thread for every inquiry result. Duplicates are merged
+     * with a map lookup and re-ranked by their new RSSI; the list is refreshed
+     * at most once per frame, and only the changed row when nothing moved.
+     * Devices without a name yet go to {@link DeviceResolver} and are added
+     * when it resolves them.
+     */
+    private void addDevice(final BluetoothDevice device, final Intent intent) {
+        final DeviceSnapshot known = mDevices.get(device.getAddress());
+        if (known != null) {
+            final boolean wasConfirmed = known.isConfirmed();
+            final boolean moved = mDevices.updateRssi(known, DeviceSnapshot.getRssi(intent));
+            known.updateFromFoundIntent(intent);
+            mDiscoveryCache.put(known);
+            if (!wasConfirmed) {
+                // first answer from a device restored from the cache
+                prepare(known);
+                if (mTargetFilter != null && mTargetFilter.matches(known)) {
+                    onTargetFound(known);
+                    return;
+                }
             }
+            if (moved)
+                scheduleListUpdate();
+            else
+                scheduleRowUpdate(known);
+            onCandidateChanged();
+            return;
+        }
+        final DeviceSnapshot pending = mResolver.getPending(device.getAddress());
+        if (pending != null) {
+            // still resolving: refresh it, or resolve it now if this result carries the name
+            pending.updateFromFoundIntent(intent);
+            mResolver.onNameChanged(device.getAddress(), intent.getStringExtra(BluetoothDevice.EXTRA_NAME));
+            return;
         }
+        final DeviceSnapshot snapshot = DeviceSnapshot.fromFoundIntent(device, intent);
+        prepare(snapshot);
+        if (mTargetFilter != null && mTargetFilter.matches(snapshot)) {
+            onTargetFound(snapshot);
+            return;
+        }
+        if (snapshot.getName() == null) {
+            mResolver.enqueue(snapshot);
+            return;
+        }
+        showDevice(snapshot);
+    }
 
-        if (!deviceFound) {
-            mDeviceList.add(device);
-            mDeviceAdapter.notifyDataSetChanged();
+    /**
+     * Offers a newly found device to the engine. A sink that connected before
+     * or is whitelisted starts bonding now, so picking it only confirms a bond
+     * that is already under way.
+     */
+    private void prepare(final DeviceSnapshot snapshot) {
+        if (mService == null || snapshot.getBondState() == BluetoothDevice.BOND_BONDED)
+            return;
+        try {
+            if (mService.prepare(snapshot.getAddress()))
+                Log.i(TAG, "speculative bond " + snapshot.getAddress() + " after "
+                        + (SystemClock.elapsedRealtime() - mDiscoveryStartTime) + " ms");
+        } catch (final RemoteException e) {
+            e.printStackTrace();
         }
     }
 
+    private void showDevice(final DeviceSnapshot snapshot) {
+        if (mDevices.get(snapshot.getAddress()) != null)
+            return;
+        mResolver.cancel(snapshot.getAddress());
+        Log.v(TAG, "device name = " + snapshot.getName() + " device bond state = " + snapshot.getBondState());
+        mDevices.add(snapshot);
+        mDiscoveryCache.put(snapshot);
+        scheduleListUpdate();
+        onCandidateChanged();
+    }
+
+    /** Auto-pick: once a device qualifies, wait a little for a stronger one to answer. */
+    private void onCandidateChanged() {
+        if (mAutoPickMinRssi == AUTO_PICK_OFF || mAutoPickPending)
+            return;
+        if (mDevices.strongestAudioDevice(mAutoPickMinRssi) == null)
+            return;
+        mAutoPickPending = true;
+        mHandler.postDelayed(mAutoPickRunnable, AUTO_PICK_SETTLE_TIME);
+    }
+
+    private void autoPick() {
+        final DeviceSnapshot best = mDevices.strongestAudioDevice(mAutoPickMinRssi);
+        if (best == null)
+            return;
+        final long timeToMatch = SystemClock.elapsedRealtime() - mDiscoveryStartTime;
+        Log.i(TAG, "auto-pick " + best.getAddress() + " at " + best.getRssi() + " dBm after " + timeToMatch + " ms");
+        mHandler.removeCallbacks(mAutoPickRunnable);
+        mAutoPickMinRssi = AUTO_PICK_OFF;
+        scanBTDevice(false);
+        returnDevice(best.getAddress(), timeToMatch);
+    }
+
+    /** Stops the inquiry at once and hands the match back without a click. */
+    private void onTargetFound(final DeviceSnapshot snapshot) {
+        final long timeToMatch = SystemClock.elapsedRealtime() - mDiscoveryStartTime;
+        Log.i(TAG, "target " + snapshot.getAddress() + " found in " + timeToMatch + " ms");
+        scanBTDevice(false);
+        mTargetFilter = null;
+        returnDevice(snapshot.getAddress(), timeToMatch);
+    }
+
+    private void returnDevice(final String address, final long timeToMatch) {
+        final Bundle b = new Bundle();
+        b.putString(BluetoothDevice.EXTRA_DEVICE, address);
+        if (timeToMatch >= 0)
+            b.putLong(EXTRA_TIME_TO_MATCH, timeToMatch);
+
+        final Intent result = new Intent();
+        result.putExtras(b);
+        setResult(Activity.RESULT_OK, result);
+        finish();
+    }
+
+    /** Rows were added or reordered. */
+    private void scheduleListUpdate() {
+        mListOrderChanged = true;
+        postListUpdate();
+    }
+
+    /** Only the row of {@code snapshot} needs redrawing. */
+    private void scheduleRowUpdate(final DeviceSnapshot snapshot) {
+        mChangedDevices.add(snapshot);
+        postListUpdate();
+    }
+
+    private void postListUpdate() {
+        if (mListUpdatePending)
+            return;
+        mListUpdatePending = true;
+        mHandler.postDelayed(mListUpdateRunnable, LIST_UPDATE_INTERVAL);
+    }
+
+    /** Rebinds the row of {@code snapshot} if it is on screen. */
+    private void redrawRow(final DeviceSnapshot snapshot) {
+        final int position = mDevices.indexOf(snapshot);
+        final int first = mDeviceListView.getFirstVisiblePosition();
+        if (position < first || position > mDeviceListView.getLastVisiblePosition())
+            return;
+        final View row = mDeviceListView.getChildAt(position - first);
+        if (row != null)
+            mDeviceAdapter.getView(position, row, mDeviceListView);
+    }
+
     @Override
     public void onStart() {
         super.onStart();
@@ -178,21 +504,21 @@ public class DeviceListActivity extends Activity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        mHandler.removeCallbacks(mListUpdateRunnable);
+        mHandler.removeCallbacks(mAutoPickRunnable);
+        if (mServiceBound) {
+            unbindService(mServiceConnection);
+            mServiceBound = false;
+        }
+        mService = null;
     }
 
     private final OnItemClickListener mDeviceClickListener = new OnItemClickListener() {
 
         @Override
         public void onItemClick(final AdapterView<?> parent, final View view, final int position, final long id) {
-            final BluetoothDevice device = mDeviceList.get(position);
-
-            final Bundle b = new Bundle();
-            b.putString(BluetoothDevice.EXTRA_DEVICE, mDeviceList.get(position).getAddress());
-
-            final Intent result = new Intent();
-            result.putExtras(b);
-            setResult(Activity.RESULT_OK, result);
-            finish();
+            scanBTDevice(false);
+            returnDevice(mDevices.get(position).getAddress(), -1);
 
         }
     };
@@ -203,14 +529,24 @@ public class DeviceListActivity extends Activity {
         scanBTDevice(false);
     }
 
+    static class ViewHolder {
+        TextView name;
+
+        TextView address;
+
+        TextView paired;
+
+        TextView rssi;
+    }
+
     class DeviceAdapter extends BaseAdapter {
         Context context;
 
-        List<BluetoothDevice> mDeviceList;
+        RankedDeviceList mDeviceList;
 
         LayoutInflater inflater;
 
-        public DeviceAdapter(final Context context, final List<BluetoothDevice> devices) {
+        public DeviceAdapter(final Context context, final RankedDeviceList devices) {
             this.context = context;
             inflater = LayoutInflater.from(context);
             this.mDeviceList = devices;
@@ -234,30 +570,40 @@ public class DeviceListActivity extends Activity {
         @Override
         public View getView(final int position, final View convertView, final ViewGroup parent) {
             ViewGroup vg;
+            ViewHolder holder;
 
             if (convertView != null) {
                 vg = (ViewGroup) convertView;
+                holder = (ViewHolder) vg.getTag();
             } else {
                 vg = (ViewGroup) inflater.inflate(R.layout.device_element, null);
+                holder = new ViewHolder();
+                holder.address = (TextView) vg.findViewById(R.id.address);
+                holder.name = (TextView) vg.findViewById(R.id.name);
+                holder.paired = (TextView) vg.findViewById(R.id.paired);
+                holder.rssi = (TextView) vg.findViewById(R.id.rssi);
+                vg.setTag(holder);
             }
 
-            final BluetoothDevice device = mDeviceList.get(position);
-            final TextView tvadd = ((TextView) vg.findViewById(R.id.address));
-            final TextView tvname = ((TextView) vg.findViewById(R.id.name));
-            final TextView tvpaired = (TextView) vg.findViewById(R.id.paired);
+            final DeviceSnapshot device = mDeviceList.get(position);
+            final TextView tvadd = holder.address;
+            final TextView tvname = holder.name;
+            final TextView tvpaired = holder.paired;
 
-            tvname.setText(device.getName());
+            tvname.setText(device.getName() != null ? device.getName() : getString(R.string.unnamed_device));
             tvadd.setText(device.getAddress());
+            holder.rssi.setText(device.getRssiText());
+            // cached rows stay dimmed until this inquiry hears them
+            final int textColor = device.isConfirmed() ? Color.WHITE : Color.GRAY;
             if (device.getBondState() == BluetoothDevice.BOND_BONDED) {
-                Log.i(TAG, "device::" + device.getName());
-                tvname.setTextColor(Color.WHITE);
-                tvadd.setTextColor(Color.WHITE);
+                tvname.setTextColor(textColor);
+                tvadd.setTextColor(textColor);
                 tvpaired.setTextColor(Color.GRAY);
                 tvpaired.setVisibility(View.VISIBLE);
                 tvpaired.setText(R.string.paired);
             } else {
-                tvname.setTextColor(Color.WHITE);
-                tvadd.setTextColor(Color.WHITE);
+                tvname.setTextColor(textColor);
+                tvadd.setTextColor(textColor);
                 tvpaired.setVisibility(View.GONE);
             }
             return vg;
@@ -0,0 +1,56 @@
+
+package com.github.android.bluetooth_autopair.bt_module;
+
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.util.Log;
+
+/**
+ * Forwards {@link BluetoothDevice#ACTION_ACL_CONNECTED} and
+ * {@link BluetoothDevice#ACTION_ACL_DISCONNECTED} to a {@link Listener}. A
+ * dropped ACL link is the earliest sign that a device went out of range, and a
+ * new one that it is back.
+ */
+public class AclStateMonitor extends RegisteredReceiver {
+
+    private static final String TAG = AclStateMonitor.class.getSimpleName();
+
+    public interface Listener {
+
+        void onAclStateChanged(BluetoothDevice device, boolean connected);
+    }
+
+    private final Listener mListener;
+
+    public AclStateMonitor(final Context context, final Listener listener) {
+        super(context);
+        mListener = listener;
+    }
+
+    @Override
+    protected IntentFilter createFilter() {
+        final IntentFilter filter = new IntentFilter(BluetoothDevice.ACTION_ACL_CONNECTED);
+        filter.addAction(BluetoothDevice.ACTION_ACL_DISCONNECTED);
+        return filter;
+    }
+
+    @Override
+    public void onReceive(final Context context, final Intent intent) {
+        final String action = intent.getAction();
+        final boolean connected;
+        if (BluetoothDevice.ACTION_ACL_CONNECTED.equals(action)) {
+            connected = true;
+        } else if (BluetoothDevice.ACTION_ACL_DISCONNECTED.equals(action)) {
+            connected = false;
+        } else {
+            return;
+        }
+        final BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+        if (device == null)
+            return;
+        Log.v(TAG, "acl " + (connected ? "connected" : "disconnected"));
+        mListener.onAclStateChanged(device, connected);
+    }
+}
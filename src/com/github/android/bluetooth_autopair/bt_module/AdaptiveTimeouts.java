@@ -0,0 +1,191 @@
+
+package com.github.android.bluetooth_autopair.bt_module;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Per-device deadlines learned from how long each phase took when it
+ * succeeded. Each device and phase keeps an exponentially weighted mean and
+ * variance of its latency; once it has {@link #MIN_SAMPLES} samples the
+ * deadline is {@code mean + 2.33 * stddev} (about p99 for a normal spread)
+ * plus {@link #MARGIN_MS}, clamped between {@link #FLOOR_MS} and
+ * {@code CEILING_FACTOR} times the caller's default. Unknown devices get the
+ * default, so a dead speaker that used to connect in 800 ms fails after a
+ * couple of seconds while a slow legacy kit gets the time it needs.
+ * <p>
+ * A timeout on a learned deadline is fed back as a sample at that deadline,
+ * so a device that has become slower widens its deadline on the retry.
+ * <p>
+ * File layout: int version, int count, then per estimate a UTF key, a float
+ * mean, a float variance and an int sample count.
+ */
+public class AdaptiveTimeouts {
+
+    private static final String TAG = AdaptiveTimeouts.class.getSimpleName();
+
+    /** Profile proxy binding; not tied to a device. */
+    public static final int PHASE_BIND = 0;
+
+    public static final int PHASE_BOND = 1;
+
+    public static final int PHASE_CONNECT_A2DP = 2;
+
+    public static final int PHASE_CONNECT_HEADSET = 3;
+
+    private static final int VERSION = 1;
+
+    private static final int MAX_ENTRIES = 64;
+
+    private static final float ALPHA = 0.125f;
+
+    private static final float P99_Z = 2.33f;
+
+    public static final int MIN_SAMPLES = 3;
+
+    public static final long MARGIN_MS = 1000;
+
+    public static final long FLOOR_MS = 1500;
+
+    public static final int CEILING_FACTOR = 3;
+
+    private static final class Estimate {
+
+        float mean;
+
+        float variance;
+
+        int samples;
+
+        void add(final float value) {
+            if (samples == 0) {
+                mean = value;
+                variance = value * value / 4;
+            } else {
+                final float diff = value - mean;
+                mean += ALPHA * diff;
+                variance = (1 - ALPHA) * (variance + ALPHA * diff * diff);
+            }
+            samples++;
+        }
+
+        long deadline() {
+            return (long) (mean + P99_Z * Math.sqrt(variance)) + MARGIN_MS;
+        }
+    }
+
+    private final StoreFile mStoreFile;
+
+    /** Access ordered, so the least recently used estimates go first. */
+    private final Map<String, Estimate> mEstimates = new LinkedHashMap<String, Estimate>(16, 0.75f, true) {
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, Estimate> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private boolean mDirty = false;
+
+    public AdaptiveTimeouts(final File file) {
+        mStoreFile = new StoreFile(file);
+    }
+
+    private static String key(final String address, final int phase) {
+        return phase + "/" + (address != null ? address : "*");
+    }
+
+    /** @return the learned deadline for {@code address} in {@code phase}, or {@code defaultMs} */
+    public synchronized long getDeadline(final String address, final int phase, final long defaultMs) {
+        final Estimate estimate = mEstimates.get(key(address, phase));
+        if (estimate == null || estimate.samples < MIN_SAMPLES)
+            return defaultMs;
+        return Math.max(FLOOR_MS, Math.min(estimate.deadline(), defaultMs * CEILING_FACTOR));
+    }
+
+    /** The phase completed in {@code latencyMs}. */
+    public synchronized void observe(final String address, final int phase, final long latencyMs) {
+        final String key = key(address, phase);
+        Estimate estimate = mEstimates.get(key);
+        if (estimate == null) {
+            estimate = new Estimate();
+            mEstimates.put(key, estimate);
+        }
+        estimate.add(latencyMs);
+        mDirty = true;
+    }
+
+    /** The phase ran into {@code deadlineMs}, which was from {@link #getDeadline}. */
+    public synchronized void onTimeout(final String address, final int phase, final long deadlineMs) {
+        final Estimate estimate = mEstimates.get(key(address, phase));
+        if (estimate == null || estimate.samples < MIN_SAMPLES)
+            return;
+        estimate.add(deadlineMs);
+        mDirty = true;
+    }
+
+    public synchronized void load() {
+        mEstimates.clear();
+        mDirty = false;
+        if (!mStoreFile.getFile().exists())
+            return;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mStoreFile.getFile())));
+            if (in.readInt() != VERSION)
+                return;
+            final int count = Math.min(in.readInt(), MAX_ENTRIES);
+            for (int i = 0; i < count; i++) {
+                final String key = in.readUTF();
+                final Estimate estimate = new Estimate();
+                estimate.mean = in.readFloat();
+                estimate.variance = in.readFloat();
+                estimate.samples = in.readInt();
+                mEstimates.put(key, estimate);
+            }
+        } catch (final IOException e) {
+            Log.w(TAG, "load failed", e);
+            mEstimates.clear();
+        } finally {
+            StoreFile.closeQuietly(in);
+        }
+    }
+
+    /** Writes the file if anything was learned since the last save. */
+    public synchronized void save() {
+        if (!mDirty)
+            return;
+        mDirty = false;
+        FileOutputStream file = null;
+        try {
+            file = mStoreFile.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+            out.writeInt(VERSION);
+            out.writeInt(mEstimates.size());
+            final Iterator<Map.Entry<String, Estimate>> it = mEstimates.entrySet().iterator();
+            while (it.hasNext()) {
+                final Map.Entry<String, Estimate> entry = it.next();
+                out.writeUTF(entry.getKey());
+                out.writeFloat(entry.getValue().mean);
+                out.writeFloat(entry.getValue().variance);
+                out.writeInt(entry.getValue().samples);
+            }
+            out.flush();
+            mStoreFile.finishWrite(file);
+        } catch (final IOException e) {
+            Log.w(TAG, "save failed", e);
+            mStoreFile.failWrite(file);
+        }
+    }
+}
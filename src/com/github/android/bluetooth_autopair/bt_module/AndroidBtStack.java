@@ -0,0 +1,395 @@
+
+package com.github.android.bluetooth_autopair.bt_module;
+
+import android.bluetooth.BluetoothA2dp;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothHeadset;
+import android.bluetooth.BluetoothProfile;
+import android.bluetooth.BluetoothProfile.ServiceListener;
+import android.bluetooth.IBluetoothA2dp;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * {@link BtStack} on the platform Bluetooth APIs. From API 17 the A2DP calls
+ * go straight to the IBluetoothA2dp binder; below that through the
+ * {@link BluetoothA2dp} proxy and {@link HiddenBluetoothApi}. The headset
+ * profile always goes through the {@link BluetoothHeadset} proxy.
+ */
+public class AndroidBtStack implements BtStack {
+
+    private static final String TAG = AndroidBtStack.class.getSimpleName();
+
+    private final BluetoothAdapter mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+
+    private final Context mContext;
+
+    private final HiddenBluetoothApi mHiddenApi = new HiddenBluetoothApi();
+
+    private volatile IBluetoothA2dp mIBluetoothA2dp = null;
+
+    private volatile BluetoothA2dp mBluetoothA2dp = null;
+
+    private volatile BluetoothHeadset mBluetoothHeadset = null;
+
+    private Callback mCallback;
+
+    private volatile Executor mCallbackExecutor;
+
+    private BondStateMonitor mBondStateMonitor;
+
+    private ProfileStateMonitor mProfileStateMonitor;
+
+    private AclStateMonitor mAclStateMonitor;
+
+    private PairingRequestHandler mPairingRequestHandler;
+
+    private final ServiceConnection mA2dpServiceConnection = new ServiceConnection() {
+
+        @Override
+        public void onServiceDisconnected(final ComponentName name) {
+            Log.v(TAG, "onServiceDisconnected, unBind A2dpService");
+            mIBluetoothA2dp = null;
+            dispatchA2dpService(false);
+        }
+
+        @Override
+        public void onServiceConnected(final ComponentName name, final IBinder service) {
+            Log.v(TAG, "onServiceConnected, bind A2dpService success");
+            mIBluetoothA2dp = IBluetoothA2dp.Stub.asInterface(service);
+            dispatchA2dpService(true);
+        }
+    };
+
+    private final ServiceListener mA2dpServiceListener = new ServiceListener(){
+        @Override
+        public void onServiceDisconnected(final int profile) {
+            Log.v(TAG, "onServiceDisconnected, unBind A2dpService");
+            mBluetoothA2dp = null;
+            dispatchA2dpService(false);
+        }
+
+        @Override
+        public void onServiceConnected(final int profile, final BluetoothProfile proxy) {
+            Log.v(TAG, "onServiceConnected, bind A2dpService success");
+            try {
+                mBluetoothA2dp = (BluetoothA2dp)proxy;
+            } catch (final Exception e) {
+                e.printStackTrace();
+            }
+            dispatchA2dpService(true);
+        }
+    };
+
+    private final ServiceListener mHeadsetServiceListener = new ServiceListener() {
+        @Override
+        public void onServiceDisconnected(final int profile) {
+            Log.v(TAG, "onServiceDisconnected, headset proxy gone");
+            mBluetoothHeadset = null;
+            dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onHeadsetServiceDisconnected();
+                }
+            });
+        }
+
+        @Override
+        public void onServiceConnected(final int profile, final BluetoothProfile proxy) {
+            Log.v(TAG, "onServiceConnected, headset proxy ready");
+            mBluetoothHeadset = (BluetoothHeadset) proxy;
+            dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onHeadsetServiceConnected();
+                }
+            });
+        }
+    };
+
+    private final BondStateMonitor.Listener mBondStateListener = new BondStateMonitor.Listener() {
+
+        @Override
+        public void onBondStateChanged(final BluetoothDevice device, final int bondState, final int previousBondState) {
+            final String address = device.getAddress();
+            dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onBondStateChanged(address, bondState, previousBondState);
+                }
+            });
+        }
+    };
+
+    private final ProfileStateMonitor.Listener mProfileStateListener = new ProfileStateMonitor.Listener() {
+
+        @Override
+        public void onProfileStateChanged(final int profile, final BluetoothDevice device, final int state,
+                final int previousState) {
+            final String address = device.getAddress();
+            dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    if (profile == BluetoothProfile.HEADSET)
+                        mCallback.onHeadsetStateChanged(address, state, previousState);
+                    else
+                        mCallback.onA2dpStateChanged(address, state, previousState);
+                }
+            });
+        }
+    };
+
+    private final AclStateMonitor.Listener mAclStateListener = new AclStateMonitor.Listener() {
+
+        @Override
+        public void onAclStateChanged(final BluetoothDevice device, final boolean connected) {
+            final String address = device.getAddress();
+            dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onAclStateChanged(address, connected);
+                }
+            });
+        }
+    };
+
+    public AndroidBtStack(final Context context) {
+        mContext = context;
+    }
+
+    private boolean isAboveJBMR1(){
+        return (android.os.Build.VERSION.SDK_INT >= 17);
+    }
+
+    private BluetoothDevice getDevice(final String address) {
+        return mBluetoothAdapter.getRemoteDevice(address);
+    }
+
+    /** Hands {@code runnable} to the callback executor, unless the stack was closed meanwhile. */
+    private void dispatch(final Runnable runnable) {
+        final Executor executor = mCallbackExecutor;
+        if (executor != null)
+            executor.execute(runnable);
+    }
+
+    private void dispatchA2dpService(final boolean connected) {
+        final Executor executor = mCallbackExecutor;
+        if (executor == null)
+            return;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (connected)
+                    mCallback.onA2dpServiceConnected();
+                else
+                    mCallback.onA2dpServiceDisconnected();
+            }
+        });
+    }
+
+    @Override
+    public void open(final Callback callback, final Executor callbackExecutor) throws SecurityException {
+        mCallback = callback;
+        mCallbackExecutor = callbackExecutor;
+        mBondStateMonitor = new BondStateMonitor(mContext, mBondStateListener);
+        mBondStateMonitor.start(null);
+        mProfileStateMonitor = new ProfileStateMonitor(mContext, mProfileStateListener);
+        mProfileStateMonitor.start(null);
+        mAclStateMonitor = new AclStateMonitor(mContext, mAclStateListener);
+        mAclStateMonitor.start(null);
+        mPairingRequestHandler = new PairingRequestHandler(mContext, mHiddenApi);
+        mPairingRequestHandler.start(null);
+        if(isAboveJBMR1()){
+            final Intent a2dpIntent = new Intent(IBluetoothA2dp.class.getName());
+            mContext.bindService(a2dpIntent, mA2dpServiceConnection, Context.BIND_AUTO_CREATE);
+        }else{
+            mBluetoothAdapter.getProfileProxy(mContext, mA2dpServiceListener, BluetoothProfile.A2DP);
+        }
+        // requested alongside A2DP rather than after it, so both binds overlap
+        mBluetoothAdapter.getProfileProxy(mContext, mHeadsetServiceListener, BluetoothProfile.HEADSET);
+    }
+
+    @Override
+    public void close() {
+        if (mBondStateMonitor == null)
+            return;
+        mBondStateMonitor.stop();
+        mProfileStateMonitor.stop();
+        mAclStateMonitor.stop();
+        mPairingRequestHandler.stop();
+        if(isAboveJBMR1()){
+            mContext.unbindService(mA2dpServiceConnection);
+        }else{
+            mBluetoothAdapter.closeProfileProxy(BluetoothProfile.A2DP, mBluetoothA2dp);
+        }
+        if (mBluetoothHeadset != null)
+            mBluetoothAdapter.closeProfileProxy(BluetoothProfile.HEADSET, mBluetoothHeadset);
+        mIBluetoothA2dp = null;
+        mBluetoothA2dp = null;
+        mBluetoothHeadset = null;
+        mCallbackExecutor = null;
+        mBondStateMonitor = null;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return mBluetoothAdapter.isEnabled();
+    }
+
+    @Override
+    public boolean isA2dpServiceReady() {
+        if (isAboveJBMR1()) {
+            return mIBluetoothA2dp != null;
+        } else {
+            return mBluetoothA2dp != null;
+        }
+    }
+
+    @Override
+    public Set<String> getBondedAddresses() {
+        final Set<String> addresses = new HashSet<String>();
+        final Set<BluetoothDevice> devices = mBluetoothAdapter.getBondedDevices();
+        if (devices != null) {
+            for (final BluetoothDevice device : devices)
+                addresses.add(device.getAddress());
+        }
+        return addresses;
+    }
+
+    @Override
+    public int getBondState(final String address) {
+        return getDevice(address).getBondState();
+    }
+
+    @Override
+    public boolean createBond(final String address) {
+        return mHiddenApi.createBond(getDevice(address));
+    }
+
+    @Override
+    public boolean removeBond(final String address) {
+        return mHiddenApi.removeBond(getDevice(address));
+    }
+
+    @Override
+    public boolean cancelBond(final String address) {
+        return mHiddenApi.cancelBondProcess(getDevice(address));
+    }
+
+    @Override
+    public void setPairingTarget(final String address, final String pin) {
+        final PairingRequestHandler handler = mPairingRequestHandler;
+        if (handler != null)
+            handler.setTarget(address, pin);
+    }
+
+    @Override
+    public boolean startDiscovery() {
+        return mBluetoothAdapter.startDiscovery();
+    }
+
+    @Override
+    public boolean cancelDiscovery() {
+        return mBluetoothAdapter.cancelDiscovery();
+    }
+
+    @Override
+    public boolean isDiscovering() {
+        return mBluetoothAdapter.isDiscovering();
+    }
+
+    @Override
+    public boolean connectA2dp(final String address) {
+        try {
+            if (isAboveJBMR1()) {
+                final IBluetoothA2dp a2dp = mIBluetoothA2dp;
+                return a2dp != null && a2dp.connect(getDevice(address));
+            } else {
+                return mHiddenApi.connect(mBluetoothA2dp, getDevice(address));
+            }
+        } catch (final RemoteException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    @Override
+    public boolean disconnectA2dp(final String address) {
+        try {
+            if (isAboveJBMR1()) {
+                final IBluetoothA2dp a2dp = mIBluetoothA2dp;
+                return a2dp != null && a2dp.disconnect(getDevice(address));
+            } else {
+                return mHiddenApi.disconnect(mBluetoothA2dp, getDevice(address));
+            }
+        } catch (final RemoteException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    @Override
+    public boolean setA2dpPriority(final String address, final int priority) {
+        try {
+            if (isAboveJBMR1()) {
+                final IBluetoothA2dp a2dp = mIBluetoothA2dp;
+                return a2dp != null && a2dp.setPriority(getDevice(address), priority);
+            } else {
+                return mHiddenApi.setPriority(mBluetoothA2dp, getDevice(address), priority);
+            }
+        } catch (final RemoteException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    @Override
+    public int getA2dpConnectionState(final String address) {
+        try {
+            if (isAboveJBMR1()) {
+                final IBluetoothA2dp a2dp = mIBluetoothA2dp;
+                return a2dp != null ? a2dp.getConnectionState(getDevice(address))
+                        : BluetoothProfile.STATE_DISCONNECTED;
+            } else {
+                final BluetoothA2dp a2dp = mBluetoothA2dp;
+                return a2dp != null ? a2dp.getConnectionState(getDevice(address))
+                        : BluetoothProfile.STATE_DISCONNECTED;
+            }
+        } catch (final RemoteException e) {
+            e.printStackTrace();
+            return BluetoothProfile.STATE_DISCONNECTED;
+        }
+    }
+
+    @Override
+    public boolean isHeadsetServiceReady() {
+        return mBluetoothHeadset != null;
+    }
+
+    @Override
+    public boolean connectHeadset(final String address) {
+        return mHiddenApi.connect(mBluetoothHeadset, getDevice(address));
+    }
+
+    @Override
+    public boolean disconnectHeadset(final String address) {
+        return mHiddenApi.disconnect(mBluetoothHeadset, getDevice(address));
+    }
+
+    @Override
+    public int getHeadsetConnectionState(final String address) {
+        final BluetoothHeadset headset = mBluetoothHeadset;
+        return headset != null ? headset.getConnectionState(getDevice(address))
+                : BluetoothProfile.STATE_DISCONNECTED;
+    }
+}
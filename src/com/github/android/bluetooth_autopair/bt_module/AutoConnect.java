@@ -1,306 +1,1102 @@
 
 package com.github.android.bluetooth_autopair.bt_module;
 
-import android.bluetooth.BluetoothA2dp;
-import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothProfile;
-import android.bluetooth.BluetoothProfile.ServiceListener;
-import android.bluetooth.IBluetoothA2dp;
-import android.content.ComponentName;
-import android.content.Context;
-import android.content.Intent;
-import android.content.ServiceConnection;
-import android.os.Handler;
-import android.os.HandlerThread;
-import android.os.IBinder;
-import android.os.Looper;
-import android.os.RemoteException;
 import android.util.Log;
 
-import com.github.android.bluetooth_autopair.BTAutoPair;
-
-import java.lang.reflect.Method;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
 
+/**
+ * Bonds and connects devices on the worker thread of a {@link Scheduler},
+ * whose clock also times every deadline and latency. Every field
+ * below that is not final, volatile or otherwise documented belongs to that
+ * thread: public methods only post messages to it, stack events are posted to
+ * it through {@link #mWorkerExecutor}, and {@link #destroy()} is a message too.
+ * No locks are needed and nothing is torn down under a running step.
+ * <p>
+ * Lifecycle: {@link #STATE_IDLE} -&gt; {@link #STATE_BINDING} -&gt;
+ * {@link #STATE_READY} &lt;-&gt; {@link #STATE_CONNECTING}, and from any of them
+ * to {@link #STATE_CLOSED}, after which every message is dropped.
+ */
 public class AutoConnect {
 
     private static final String TAG = AutoConnect.class.getSimpleName();
 
-    private final BluetoothAdapter mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+    public static final int STATE_IDLE = 0;
+
+    /** Waiting for the profile proxies. */
+    public static final int STATE_BINDING = 1;
 
-    private IBluetoothA2dp mIBluetoothA2dp = null;
+    public static final int STATE_READY = 2;
 
-    private BluetoothA2dp mBluetoothA2dp = null;
+    /** At least one session in flight. */
+    public static final int STATE_CONNECTING = 3;
 
-    private BluetoothDevice mBluetoothDevice = null;
-    
-    private Context mContext = null;
+    public static final int STATE_CLOSED = 4;
 
-    private WorkerThreadHandler mWorkerThreadHandler;
+    private static final String[] STATE_NAMES = {
+            "IDLE", "BINDING", "READY", "CONNECTING", "CLOSED"
+    };
 
-    private HandlerThread mWorkerThread;
+    private final BtStack mBtStack;
 
-    private Handler mMainHandler;
+    private final Scheduler mScheduler;
 
-    private static final String BLUETOOTHDEVICE_CREATE_BOND = "createBond";
+    private Listener mListener;
 
-    private static final int CHECK_BLUETOOTH_PAIR_INTERVAL = 200;
+    private int mState = STATE_IDLE;
 
-    private static final int CHECK_BLUETOOTH_PAIR_TIMEOUT = 7000;
+    /** Copy of {@link #mState} for other threads; written only by the worker. */
+    private volatile int mPublishedState = STATE_IDLE;
+
+    private final ConnectMetrics mMetrics = new ConnectMetrics();
+
+    /** Session boundaries go into the trace when running on a {@link RecordingBtStack}. */
+    private final FlightRecorder mFlightRecorder;
+
+    private static final String LAST_KNOWN_DEVICES_FILE = "last_known_devices.bin";
+
+    private static final String TIMEOUTS_FILE = "connect_timeouts.bin";
+
+    private final LastKnownDeviceStore mLastKnownDeviceStore;
+
+    /** When the A2DP service bind was requested; 0 once the proxy arrived. */
+    private long mBindStartTime = 0;
+
+    /** The bind ran past its deadline, which was fed back as a timeout instead of a latency. */
+    private boolean mBindTimedOut = false;
+
+    private final BondedDeviceIndex mBondedDeviceIndex = new BondedDeviceIndex();
+
+    /** Sessions in flight, keyed by address. Worker thread only. */
+    private final Map<String, ConnectSession> mSessions = new HashMap<String, ConnectSession>();
+
+    /** Sessions waiting for the A2DP proxy to bind. */
+    private final List<ConnectSession> mPendingSessions = new ArrayList<ConnectSession>();
+
+    /** Sessions waiting for the radio; only one bond is outstanding at a time. */
+    private final LinkedList<ConnectSession> mBondQueue = new LinkedList<ConnectSession>();
 
-    private static final int CHECK_A2DP_IS_BIND_INTERVAL = 200;
+    private ConnectSession mBondingSession = null;
+
+    private final RetryPolicy mRetryPolicy = new RetryPolicy();
+
+    private final PairingPinTable mPinTable = new PairingPinTable();
+
+    private final AdaptiveTimeouts mTimeouts;
+
+    private final ReconnectWatchdog mWatchdog;
+
+    /** Defaults for devices {@link AdaptiveTimeouts} knows nothing about yet. */
+    private static final int CHECK_BLUETOOTH_PAIR_TIMEOUT = 7000;
 
     private static final int CHECK_A2DP_IS_BIND_TIMEOUT = 5000;
 
-    private class WorkerThreadHandler extends Handler {
+    private static final int DEFAULT_CONNECT_TIMEOUT = 10000;
 
-        WorkerThreadHandler(final Looper looper) {
-            super(looper);
-        }
+    private volatile long mConnectTimeout = DEFAULT_CONNECT_TIMEOUT;
+
+    /** Profiles each new session connects, see {@link #setProfiles(Set)}. */
+    private volatile int[] mProfiles = { BluetoothProfile.A2DP };
+
+    private static final int MSG_START_CONNECT = 1;
+
+    private static final int MSG_A2DP_BIND_TIMEOUT = 2;
+
+    private static final int MSG_DISCONNECT = 3;
+
+    private static final int MSG_SET_PRIORITY = 4;
+
+    private static final int MSG_CONNECT_TIMEOUT = 5;
+
+    private static final int MSG_RECONNECT_LAST_KNOWN = 6;
+
+    private static final int MSG_RETRY_BOND = 7;
 
+    private static final int MSG_RETRY_CONNECT = 8;
+
+    private static final int MSG_CANCEL = 9;
+
+    private static final int MSG_WATCH = 10;
+
+    private static final int MSG_UNWATCH = 11;
+
+    private static final int MSG_INIT = 12;
+
+    private static final int MSG_DESTROY = 13;
+
+    private static final int MSG_PREPARE = 14;
+
+    private static final int MSG_SPECULATION_EXPIRED = 15;
+
+    /** How long a speculative bond waits for the user to pick its device. */
+    private static final int SPECULATION_TIMEOUT = 30000;
+
+    /** Devices besides the last known ones that may be bonded speculatively. */
+    private volatile Set<String> mSpeculationWhitelist = Collections.emptySet();
+
+    /**
+     * Results of {@link #startConnect} requests, called on the worker thread.
+     * Background work (speculative bonds, watchdog reconnects) is not reported.
+     */
+    public interface Listener {
+
+        void onConnectResult(String address, boolean success);
+
+        /** Every device of one request is done. */
+        void onBatchComplete(BatchResult result);
     }
 
-    private final Runnable mAutoConnectRunnable = new Runnable() {
+    private final Scheduler.Target mWorkerTarget = new Scheduler.Target() {
 
         @Override
-        public void run() {
-            try {
-                doBTConnect();
-            }catch (final Exception e) {
-                e.printStackTrace();
+        public void handleMessage(final int what, final int arg1, final Object obj) {
+            if (mState == STATE_CLOSED)
+                return;
+            switch (what) {
+                case MSG_INIT:
+                    onInit();
+                    break;
+                case MSG_DESTROY:
+                    onDestroy();
+                    break;
+                case MSG_START_CONNECT:
+                    onStartConnect((List<String>) obj);
+                    break;
+                case MSG_A2DP_BIND_TIMEOUT:
+                    onA2dpBindTimeout();
+                    break;
+                case MSG_DISCONNECT:
+                    // an explicit disconnect must not be undone by the watchdog
+                    mWatchdog.unwatch((String) obj);
+                    disconnectA2dp((String) obj);
+                    break;
+                case MSG_SET_PRIORITY:
+                    setA2dpPriority((String) obj, arg1);
+                    break;
+                case MSG_CONNECT_TIMEOUT:
+                    onConnectTimeout((ConnectSession.Leg) obj);
+                    break;
+                case MSG_RECONNECT_LAST_KNOWN:
+                    onReconnectLastKnown();
+                    break;
+                case MSG_RETRY_BOND:
+                    onRetryBond((ConnectSession) obj);
+                    break;
+                case MSG_RETRY_CONNECT:
+                    onRetryConnect((ConnectSession.Leg) obj);
+                    break;
+                case MSG_CANCEL:
+                    onCancel((String) obj);
+                    break;
+                case MSG_WATCH:
+                    mWatchdog.watch((String) obj);
+                    break;
+                case MSG_UNWATCH:
+                    mWatchdog.unwatch((String) obj);
+                    break;
+                case MSG_PREPARE:
+                    onPrepare((String) obj);
+                    break;
+                case MSG_SPECULATION_EXPIRED:
+                    onSpeculationExpired((ConnectSession) obj);
+                    break;
             }
         }
     };
 
-    private final ServiceConnection mA2dpServiceConnection = new ServiceConnection() {
+    private final Runnable mBondTimeoutRunnable = new Runnable() {
 
         @Override
-        public void onServiceDisconnected(final ComponentName name) {
-            Log.v(TAG, "onServiceDisconnected, unBind A2dpService");
-            mIBluetoothA2dp = null;
+        public void run() {
+            Log.w(TAG, "pairToDevice timeout");
+            final ConnectSession session = mBondingSession;
+            if (session == null)
+                return;
+            mTimeouts.onTimeout(session.address, AdaptiveTimeouts.PHASE_BOND, getBondDeadline(session.address));
+            final int bondState = mBtStack.getBondState(session.address);
+            // a bond still in progress would make the retry's createBond fail
+            if (bondState == BluetoothDevice.BOND_BONDING && session.bondCreated)
+                mBtStack.cancelBond(session.address);
+            onBondFinished(bondState == BluetoothDevice.BOND_BONDED);
         }
+    };
+
+    private final Executor mWorkerExecutor = new Executor() {
 
         @Override
-        public void onServiceConnected(final ComponentName name, final IBinder service) {
-            Log.v(TAG, "onServiceConnected, bind A2dpService success");
-            mIBluetoothA2dp = IBluetoothA2dp.Stub.asInterface(service);
+        public void execute(final Runnable command) {
+            mScheduler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mState != STATE_CLOSED)
+                        command.run();
+                }
+            }, 0);
         }
     };
 
-    private final ServiceListener mA2dpServiceListener = new ServiceListener(){
+    /** Stack events, delivered on the worker thread through {@link #mWorkerExecutor}. */
+    private final BtStack.Callback mBtStackCallback = new BtStack.Callback() {
+
         @Override
-        public void onServiceDisconnected(final int profile) {
-            Log.v(TAG, "onServiceDisconnected, unBind A2dpService");
-            mBluetoothA2dp = null;
+        public void onA2dpServiceConnected() {
+            onProfileServiceReady();
         }
 
         @Override
-        public void onServiceConnected(final int profile, final BluetoothProfile proxy) {
-            Log.v(TAG, "onServiceConnected, bind A2dpService success");
-            try {
-                mBluetoothA2dp = (BluetoothA2dp)proxy;
-            } catch (final Exception e) {
-                e.printStackTrace();
+        public void onA2dpServiceDisconnected() {
+            Log.w(TAG, "A2dpService disconnected");
+            setState(STATE_BINDING);
+        }
+
+        @Override
+        public void onBondStateChanged(final String address, final int bondState, final int previousBondState) {
+            mBondedDeviceIndex.onBondStateChanged(address, bondState, mScheduler.now());
+            if (mBondingSession == null || !mBondingSession.address.equals(address))
+                return;
+            if (bondState == BluetoothDevice.BOND_BONDED || bondState == BluetoothDevice.BOND_NONE) {
+                final long took = mScheduler.now() - mBondingSession.bondStartTime;
+                Log.v(TAG, "bond finished, state = " + bondState + ", took " + took + " ms");
+                if (bondState == BluetoothDevice.BOND_BONDED)
+                    mTimeouts.observe(address, AdaptiveTimeouts.PHASE_BOND, took);
+                onBondFinished(bondState == BluetoothDevice.BOND_BONDED);
+            }
+        }
+
+        @Override
+        public void onA2dpStateChanged(final String address, final int state, final int previousState) {
+            onProfileStateChanged(BluetoothProfile.A2DP, address, state, previousState);
+        }
+
+        @Override
+        public void onHeadsetServiceConnected() {
+            onProfileServiceReady();
+        }
+
+        @Override
+        public void onHeadsetServiceDisconnected() {
+            Log.w(TAG, "HeadsetService disconnected");
+            // only matters when the sessions connect the headset profile
+            if (!areProfileServicesReady())
+                setState(STATE_BINDING);
+        }
+
+        @Override
+        public void onHeadsetStateChanged(final String address, final int state, final int previousState) {
+            onProfileStateChanged(BluetoothProfile.HEADSET, address, state, previousState);
+        }
+
+        @Override
+        public void onAclStateChanged(final String address, final boolean connected) {
+            if (connected) {
+                mWatchdog.onAclConnected(address);
+            } else if (!mSessions.containsKey(address)) {
+                mWatchdog.onLinkLost(address);
             }
         }
     };
 
-    public AutoConnect(final Context context, final Handler handler) {
-        mContext = context;
-        mMainHandler = handler;
-        onInit();
+    private final ReconnectWatchdog.Reconnector mReconnector = new ReconnectWatchdog.Reconnector() {
+
+        @Override
+        public boolean isConnecting(final String address) {
+            return mSessions.containsKey(address);
+        }
+
+        @Override
+        public void reconnect(final String address) {
+            onReconnect(address);
+        }
+    };
+
+    /**
+     * Runs the engine on {@code btStack}, e.g. an {@link AndroidBtStack} with a
+     * {@link LooperScheduler}, or a {@link SimulatedBtStack} with a
+     * {@link VirtualScheduler}. The learned device data is kept in
+     * {@code filesDir}; {@code listener} may be null.
+     */
+    public AutoConnect(final Listener listener, final BtStack btStack, final File filesDir,
+            final Scheduler scheduler) {
+        mListener = listener;
+        mBtStack = btStack;
+        mScheduler = scheduler;
+        mFlightRecorder = btStack instanceof RecordingBtStack ? ((RecordingBtStack) btStack).getRecorder() : null;
+        mLastKnownDeviceStore = new LastKnownDeviceStore(new File(filesDir, LAST_KNOWN_DEVICES_FILE));
+        mTimeouts = new AdaptiveTimeouts(new File(filesDir, TIMEOUTS_FILE));
+        mWatchdog = new ReconnectWatchdog(mScheduler, mMetrics, mReconnector);
+        mScheduler.setTarget(mWorkerTarget);
+        mScheduler.sendMessage(MSG_INIT, 0, null, 0);
     }
 
-    private boolean isAboveJBMR1(){
-        return (android.os.Build.VERSION.SDK_INT >= 17);
+    /** Same check as {@code BluetoothAdapter.checkBluetoothAddress}: upper case "00:11:22:AA:BB:CC". */
+    public static boolean checkAddress(final String address) {
+        if (address == null || address.length() != 17)
+            return false;
+        for (int i = 0; i < 17; i++) {
+            final char c = address.charAt(i);
+            if (i % 3 == 2) {
+                if (c != ':')
+                    return false;
+            } else if (!(c >= '0' && c <= '9') && !(c >= 'A' && c <= 'F')) {
+                return false;
+            }
+        }
+        return true;
     }
 
-    private void doBTConnect() throws Exception{
-        Log.v(TAG, "doBTConnect");
-        if (isDevicePaired(mBluetoothAdapter.getBondedDevices())) {
-            if (isA2dpConnected()) {
-                mMainHandler.sendEmptyMessage(BTAutoPair.MSG_CONNECT_SUCCESS);
+    /** One of the {@code STATE_*} constants, as last published by the worker. */
+    public int getState() {
+        return mPublishedState;
+    }
+
+    private void setState(final int state) {
+        if (mState == state)
+            return;
+        Log.v(TAG, "state " + STATE_NAMES[mState] + " -> " + STATE_NAMES[state]);
+        mState = state;
+        mPublishedState = state;
+    }
+
+    /** Moves between READY and CONNECTING as sessions come and go. */
+    private void updateState() {
+        if (mState == STATE_READY && !mSessions.isEmpty())
+            setState(STATE_CONNECTING);
+        else if (mState == STATE_CONNECTING && mSessions.isEmpty())
+            setState(STATE_READY);
+    }
+
+    private void doBTConnect(final ConnectSession session) {
+        Log.v(TAG, "doBTConnect " + session.address);
+        try {
+            if (isDevicePaired(session.address)) {
+                connectIfNeeded(session);
             } else {
-                connectToA2dp(mBluetoothDevice);
+                mBondQueue.add(session);
+                pumpBondQueue();
             }
-        } else {
-            pairToDevice();
-            if (isA2dpConnected()) {
-                mMainHandler.sendEmptyMessage(BTAutoPair.MSG_CONNECT_SUCCESS);
+        } catch (final Exception e) {
+            e.printStackTrace();
+            finishSession(session, false);
+        }
+    }
+
+    /**
+     * How long to wait after a profile connect request for the sink to report
+     * {@link BluetoothProfile#STATE_CONNECTED} before that connect is failed,
+     * for devices without a learned deadline.
+     */
+    public void setConnectTimeout(final long timeoutMs) {
+        mConnectTimeout = timeoutMs;
+    }
+
+    /**
+     * Profiles to connect on every following session, e.g. A2DP and
+     * {@link BluetoothProfile#HEADSET} for a car kit. They are connected
+     * concurrently once the device is bonded, and a session succeeds only when
+     * all of them are up. Unsupported profiles are dropped; AVRCP has no
+     * public proxy and comes up with A2DP on the sink side.
+     */
+    public void setProfiles(final Set<Integer> profiles) {
+        final List<Integer> supported = new ArrayList<Integer>();
+        for (final Integer profile : profiles) {
+            if (profile == BluetoothProfile.A2DP || profile == BluetoothProfile.HEADSET) {
+                supported.add(profile);
             } else {
-                connectToA2dp(mBluetoothDevice);
+                Log.w(TAG, "profile " + profile + " not supported");
             }
         }
+        if (supported.isEmpty())
+            return;
+        final int[] array = new int[supported.size()];
+        for (int i = 0; i < array.length; i++)
+            array[i] = supported.get(i);
+        mProfiles = array;
     }
 
-    private void bindToA2dpService() throws SecurityException {
-        if(isAboveJBMR1()){
-            final Intent a2dpIntent = new Intent(IBluetoothA2dp.class.getName());
-            mContext.bindService(a2dpIntent, mA2dpServiceConnection, Context.BIND_AUTO_CREATE);
-        }else{
-            mBluetoothAdapter.getProfileProxy(mContext, mA2dpServiceListener, BluetoothProfile.A2DP);
-        }
+    /**
+     * PINs used to answer legacy pairing requests. Each bond attempt of a
+     * device tries the next PIN, so the fallbacks are tried through the
+     * bond retry budget.
+     */
+    public PairingPinTable getPinTable() {
+        return mPinTable;
     }
 
-    private void unBindToA2dpService() {
-        if(isAboveJBMR1()){
-            mContext.unbindService(mA2dpServiceConnection);
-        }else{
-            mBluetoothAdapter.closeProfileProxy(BluetoothProfile.A2DP, mBluetoothA2dp);
-        }
+    /** Learned per-device deadlines for bind, bond and connect. */
+    public AdaptiveTimeouts getTimeouts() {
+        return mTimeouts;
+    }
+
+    /** Retry budgets, backoff and circuit breaker settings; configure before connecting. */
+    public RetryPolicy getRetryPolicy() {
+        return mRetryPolicy;
     }
 
-    private void onInitWorker() {
-        if (mWorkerThread == null) {
-            mWorkerThread = new HandlerThread("WorkerThread");
-            mWorkerThread.start();
+    public ConnectMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /** Issues every outstanding profile connect at once; none waits for another. */
+    private void connectIfNeeded(final ConnectSession session) throws Exception {
+        if (session.batch == null && session.origin == ConnectSession.ORIGIN_SPECULATIVE) {
+            Log.v(TAG, "speculative bond ready " + session.address);
+            session.stage = ConnectSession.STAGE_QUEUED;
+            session.held = true;
+            return;
+        }
+        session.stage = ConnectSession.STAGE_CONNECTING;
+        for (final ConnectSession.Leg leg : session.legs) {
+            if (leg.done || leg.issueTime != 0)
+                continue;
+            if (getProfileConnectionState(leg.profile, session.address) == BluetoothProfile.STATE_CONNECTED) {
+                leg.done = true;
+                leg.success = true;
+                leg.latency = 0;
+            } else {
+                connectLeg(leg);
+            }
+            if (session.stage == ConnectSession.STAGE_DONE)
+                return;
         }
-        if (mWorkerThreadHandler == null)
-            mWorkerThreadHandler = new WorkerThreadHandler(mWorkerThread.getLooper());
+        onLegFinished(session);
     }
 
-    public void onDispatchWorker() {
-        if (mWorkerThreadHandler != null) {
-            mWorkerThreadHandler = null;
+    private void finishSession(final ConnectSession session, final boolean success) {
+        session.stage = ConnectSession.STAGE_DONE;
+        session.success = success;
+        session.finishTime = mScheduler.now();
+        mSessions.remove(session.address);
+        mScheduler.removeMessages(MSG_SPECULATION_EXPIRED, session);
+        if (session.batch == null && session.origin == ConnectSession.ORIGIN_WATCHDOG) {
+            // background reconnect: the link history learns from it, the breaker and listeners do not
+            final long took = session.finishTime - session.requestTime;
+            Log.v(TAG, "watchdog reconnect " + session.address + ", success = " + success + ", took " + took + " ms");
+            mTimeouts.save();
+            if (success) {
+                mLastKnownDeviceStore.recordSuccess(session.address, (int) took);
+                mWatchdog.onConnected(session.address, took);
+            } else if (!session.cancelled) {
+                mWatchdog.onReconnectFailed(session.address);
+            }
+            updateState();
+            return;
+        }
+        if (session.batch == null) {
+            // unconfirmed speculation: nobody asked, so nobody is told
+            Log.v(TAG, "drop speculative bond " + session.address + ", bonded = " + success);
+            undoSpeculativeBond(session);
+            updateState();
+            return;
+        }
+        final long took = session.finishTime - session.requestTime;
+        if (mFlightRecorder != null)
+            mFlightRecorder.record(FlightRecorder.EV_SESSION_FINISH, session.address, success ? 1 : 0, (int) took);
+        if (!session.cancelled)
+            mRetryPolicy.onSessionFinished(session.address, success, session.finishTime);
+        mTimeouts.save();
+        if (success) {
+            mMetrics.record(session.origin == ConnectSession.ORIGIN_SPECULATIVE
+                    ? ConnectMetrics.PHASE_SPECULATIVE_TOTAL : ConnectMetrics.PHASE_TOTAL, took);
+            mLastKnownDeviceStore.recordSuccess(session.address, (int) took);
+            mWatchdog.onConnected(session.address, took);
+        } else if (!session.cancelled) {
+            mWatchdog.onReconnectFailed(session.address);
         }
-        if (mWorkerThread != null) {
-            mWorkerThread.getLooper().quit();
-            mWorkerThread = null;
+        Log.v(TAG, "finish " + session.address + ", success = " + success
+                + ", took " + took + " ms");
+        if (mListener != null)
+            mListener.onConnectResult(session.address, success);
+        if (session.batch.onSessionFinished()) {
+            final BatchResult result = session.batch.toResult(session.finishTime);
+            Log.v(TAG, result.toString());
+            if (mListener != null)
+                mListener.onBatchComplete(result);
         }
+        updateState();
     }
 
     public void startConnect(BluetoothDevice aBluetoothDevice) {
-        mBluetoothDevice = aBluetoothDevice;
-        checkA2dpServiceIsReady();
-    }
-
-    private void checkA2dpServiceIsReady(){
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                final long time = System.currentTimeMillis();
-                while (true) {
-                    if (System.currentTimeMillis() - time < CHECK_A2DP_IS_BIND_TIMEOUT) {
-                        if(isAboveJBMR1()){
-                            if (mIBluetoothA2dp == null) {
-                                try {
-                                    Thread.sleep(CHECK_A2DP_IS_BIND_INTERVAL);
-                                } catch (final InterruptedException e) {
-                                    e.printStackTrace();
-                                    break;
-                                }
-                            } else {
-                                if (mWorkerThreadHandler != null)
-                                    mWorkerThreadHandler.post(mAutoConnectRunnable);
-                                break;
-                            }
-                        }else{
-                            if (mBluetoothA2dp == null) {
-                                try {
-                                    Thread.sleep(CHECK_A2DP_IS_BIND_INTERVAL);
-                                } catch (final InterruptedException e) {
-                                    e.printStackTrace();
-                                    break;
-                                }
-                            } else {
-                                if (mWorkerThreadHandler != null)
-                                    mWorkerThreadHandler.post(mAutoConnectRunnable);
-                                break;
-                            }
-                        }
-                    } else {
-                        break;
-                    }
-                }
+        startConnectByAddress(Collections.singletonList(aBluetoothDevice.getAddress()));
+    }
+
+    /**
+     * Connects several devices in one run. Bonds are issued one at a time,
+     * while devices that are already bonded, or have finished bonding, go on
+     * to connect without waiting for the rest. Each device is reported with
+     * {@link Listener#onConnectResult}, then the whole run with
+     * {@link Listener#onBatchComplete}.
+     */
+    public void startConnect(final List<BluetoothDevice> devices) {
+        final List<String> addresses = new ArrayList<String>(devices.size());
+        for (final BluetoothDevice device : devices)
+            addresses.add(device.getAddress());
+        startConnectByAddress(addresses);
+    }
+
+    /**
+     * Reconnects the device that last connected successfully, skipping
+     * discovery. Does nothing when no device has connected before.
+     */
+    public void reconnectLastKnown() {
+        mScheduler.sendMessage(MSG_RECONNECT_LAST_KNOWN, 0, null, 0);
+    }
+
+    public LastKnownDeviceStore getLastKnownDeviceStore() {
+        return mLastKnownDeviceStore;
+    }
+
+    private void onReconnectLastKnown() {
+        final LastKnownDeviceStore.Entry entry = mLastKnownDeviceStore.getMostRecent();
+        if (entry == null) {
+            Log.v(TAG, "no last known device");
+            return;
+        }
+        Log.v(TAG, "reconnect last known device " + entry.address);
+        onStartConnect(Collections.singletonList(entry.address));
+    }
+
+    /**
+     * Same as {@link #startConnect(List)} for devices known only by address.
+     * Malformed addresses are skipped.
+     */
+    public void startConnectByAddress(final List<String> addresses) {
+        final List<String> valid = new ArrayList<String>(addresses.size());
+        for (final String address : addresses) {
+            if (checkAddress(address)) {
+                valid.add(address);
+            } else {
+                Log.w(TAG, "skip invalid address " + address);
             }
-        }).start();
+        }
+        mScheduler.sendMessage(MSG_START_CONNECT, 0, valid, 0);
+    }
+
+    /**
+     * Pipelined connect: called for a device as soon as discovery finds it.
+     * When it is a last known or whitelisted device and not bonded yet,
+     * bonding starts right away (which also stops the inquiry) while the
+     * profile proxies finish binding. A later {@link #startConnect} for the
+     * device picks up the bond where it is; without one the speculation is
+     * dropped silently after {@value #SPECULATION_TIMEOUT} ms and the bond it
+     * made is removed.
+     *
+     * @return whether the device is a candidate
+     */
+    public boolean prepare(final String address) {
+        if (!checkAddress(address))
+            return false;
+        if (!mLastKnownDeviceStore.contains(address) && !mSpeculationWhitelist.contains(address))
+            return false;
+        mScheduler.sendMessage(MSG_PREPARE, 0, address, 0);
+        return true;
+    }
+
+    /** Devices {@link #prepare} may bond besides the ones that connected before. */
+    public void setSpeculationWhitelist(final Set<String> addresses) {
+        mSpeculationWhitelist = Collections.unmodifiableSet(new HashSet<String>(addresses));
+    }
+
+    public void disconnect(final BluetoothDevice device) {
+        mScheduler.sendMessage(MSG_DISCONNECT, 0, device.getAddress(), 0);
+    }
+
+    /**
+     * Keeps {@code device} connected: when its A2DP or ACL link drops it is
+     * reconnected with backoff until it comes back, or until {@link #unwatch}
+     * or {@link #disconnect} is called.
+     */
+    public void watch(final BluetoothDevice device) {
+        mScheduler.sendMessage(MSG_WATCH, 0, device.getAddress(), 0);
+    }
+
+    public void unwatch(final BluetoothDevice device) {
+        mScheduler.sendMessage(MSG_UNWATCH, 0, device.getAddress(), 0);
+    }
+
+    /** Stops connecting {@code device}, including any retry that is waiting. */
+    public void cancel(final BluetoothDevice device) {
+        mScheduler.sendMessage(MSG_CANCEL, 0, device.getAddress(), 0);
     }
 
-    private boolean isDevicePaired(final Set<BluetoothDevice> list) {
-        for (final BluetoothDevice device : list) {
-            if (device.getName().equalsIgnoreCase(mBluetoothDevice.getName())) {
-                return true;
+    /** Sets the A2DP auto-connect priority of {@code device}, e.g. 100 (on) or 0 (off). */
+    public void setPriority(final BluetoothDevice device, final int priority) {
+        mScheduler.sendMessage(MSG_SET_PRIORITY, priority, device.getAddress(), 0);
+    }
+
+    /**
+     * Runs on the worker thread. Connects right away when the A2DP proxy is
+     * bound, otherwise parks the request until {@link #onProfileServiceReady()}.
+     */
+    private void onStartConnect(final List<String> addresses) {
+        final ConnectSession.Batch batch = new ConnectSession.Batch(mScheduler.now());
+        // sessions this request has to start; adopted speculative and watchdog sessions carry on by themselves
+        final List<ConnectSession> toStart = new ArrayList<ConnectSession>();
+        for (final String address : addresses) {
+            final ConnectSession existing = mSessions.get(address);
+            if (existing != null && existing.batch == null) {
+                Log.v(TAG, "adopt " + address + ", origin = " + existing.origin + ", held = " + existing.held);
+                mScheduler.removeMessages(MSG_SPECULATION_EXPIRED, existing);
+                existing.batch = batch;
+                existing.requestTime = mScheduler.now();
+                batch.add(existing);
+                if (existing.held) {
+                    existing.held = false;
+                    toStart.add(existing);
+                }
+            } else if (existing != null) {
+                Log.w(TAG, "already connecting " + address);
+                continue;
+            } else {
+                final ConnectSession session = new ConnectSession(address, batch, mProfiles,
+                        ConnectSession.ORIGIN_USER, mScheduler.now());
+                mSessions.put(session.address, session);
+                batch.add(session);
+                toStart.add(session);
+            }
+            if (mFlightRecorder != null)
+                mFlightRecorder.record(FlightRecorder.EV_SESSION_START, address, 0, 0);
+        }
+        if (batch.isEmpty())
+            return;
+        updateState();
+        final long now = mScheduler.now();
+        for (final ConnectSession session : toStart) {
+            if (mRetryPolicy.isCircuitOpen(session.address, now)) {
+                Log.w(TAG, "circuit open, skip " + session.address);
+                finishSession(session, false);
+            }
+        }
+        if (batch.isDone())
+            return;
+        if (areProfileServicesReady()) {
+            for (final ConnectSession session : toStart) {
+                if (session.stage != ConnectSession.STAGE_DONE)
+                    doBTConnect(session);
             }
+            return;
+        }
+        for (final ConnectSession session : toStart) {
+            if (session.stage != ConnectSession.STAGE_DONE)
+                waitForProfileServices(session);
+        }
+    }
+
+    /** Parks {@code session} until {@link #onProfileServiceReady()} or the bind timeout. */
+    private void waitForProfileServices(final ConnectSession session) {
+        Log.v(TAG, "profile services not ready, connect pending " + session.address);
+        mPendingSessions.add(session);
+        // timed from the bind request, like the bind latency, not from when this session parked
+        final long elapsed = mBindStartTime != 0 ? mScheduler.now() - mBindStartTime : 0;
+        mScheduler.removeMessages(MSG_A2DP_BIND_TIMEOUT, null);
+        mScheduler.sendMessage(MSG_A2DP_BIND_TIMEOUT, 0, null, Math.max(0, getBindDeadline() - elapsed));
+    }
+
+    private long getBindDeadline() {
+        return mTimeouts.getDeadline(null, AdaptiveTimeouts.PHASE_BIND, CHECK_A2DP_IS_BIND_TIMEOUT);
+    }
+
+    private void onPrepare(final String address) {
+        if (mFlightRecorder != null)
+            mFlightRecorder.record(FlightRecorder.EV_PREPARE, address, 0, 0);
+        if (mSessions.containsKey(address) || isDevicePaired(address))
+            return;
+        if (mRetryPolicy.isCircuitOpen(address, mScheduler.now()))
+            return;
+        Log.v(TAG, "speculative bond " + address);
+        final ConnectSession session = new ConnectSession(address, null, mProfiles,
+                ConnectSession.ORIGIN_SPECULATIVE, mScheduler.now());
+        mSessions.put(address, session);
+        updateState();
+        mScheduler.sendMessage(MSG_SPECULATION_EXPIRED, 0, session, SPECULATION_TIMEOUT);
+        // bonding needs no profile proxy, so it overlaps their binding
+        mBondQueue.add(session);
+        pumpBondQueue();
+    }
+
+    /**
+     * Reconnect asked for by the watchdog. It skips the circuit breaker and
+     * reports to nobody; the watchdog's own backoff paces it.
+     */
+    private void onReconnect(final String address) {
+        if (mSessions.containsKey(address))
+            return;
+        final ConnectSession session = new ConnectSession(address, null, mProfiles,
+                ConnectSession.ORIGIN_WATCHDOG, mScheduler.now());
+        mSessions.put(address, session);
+        updateState();
+        if (areProfileServicesReady()) {
+            doBTConnect(session);
+        } else {
+            waitForProfileServices(session);
         }
+    }
+
+    private void onSpeculationExpired(final ConnectSession session) {
+        if (session.batch == null && session.stage != ConnectSession.STAGE_DONE)
+            onCancel(session.address);
+    }
+
+    /**
+     * Undoes the bond of a speculation that is dropped unconfirmed, on expiry
+     * or after its bond failed, so a device nobody picked is not left paired.
+     */
+    private void undoSpeculativeBond(final ConnectSession session) {
+        if (!session.bondCreated)
+            return;
+        // onPrepare only bonds unpaired devices, so this bond is ours; it may
+        // still be in progress after the bond deadline gave up on it
+        final int bondState = mBtStack.getBondState(session.address);
+        if (bondState == BluetoothDevice.BOND_BONDING) {
+            Log.v(TAG, "cancel speculative bond " + session.address);
+            mBtStack.cancelBond(session.address);
+        } else if (bondState == BluetoothDevice.BOND_BONDED) {
+            Log.v(TAG, "remove speculative bond " + session.address);
+            mBtStack.removeBond(session.address);
+        }
+    }
+
+    private boolean isProfileServiceReady(final int profile) {
+        return profile == BluetoothProfile.HEADSET ? mBtStack.isHeadsetServiceReady() : mBtStack.isA2dpServiceReady();
+    }
+
+    private boolean areProfileServicesReady() {
+        for (final int profile : mProfiles) {
+            if (!isProfileServiceReady(profile))
+                return false;
+        }
+        return true;
+    }
+
+    /** A profile proxy arrived; the pending sessions go once all the ones they need are in. */
+    private void onProfileServiceReady() {
+        if (mBindStartTime != 0 && areProfileServicesReady()) {
+            final long took = mScheduler.now() - mBindStartTime;
+            mMetrics.record(ConnectMetrics.PHASE_BIND, took);
+            if (!mBindTimedOut)
+                mTimeouts.observe(null, AdaptiveTimeouts.PHASE_BIND, took);
+            mBindStartTime = 0;
+        }
+        if (mState == STATE_BINDING && areProfileServicesReady()) {
+            setState(STATE_READY);
+            updateState();
+        }
+        if (mPendingSessions.isEmpty() || !areProfileServicesReady())
+            return;
+        mScheduler.removeMessages(MSG_A2DP_BIND_TIMEOUT, null);
+        final List<ConnectSession> sessions = new ArrayList<ConnectSession>(mPendingSessions);
+        mPendingSessions.clear();
+        for (final ConnectSession session : sessions)
+            doBTConnect(session);
+    }
+
+    /**
+     * Gives up waiting for the slower proxies. Sessions go ahead when at least
+     * one of their profiles is available; the legs still unbound fail on their own.
+     */
+    private void onA2dpBindTimeout() {
+        if (mPendingSessions.isEmpty())
+            return;
+        boolean anyReady = false;
+        for (final int profile : mProfiles)
+            anyReady |= isProfileServiceReady(profile);
+        Log.w(TAG, "profile service bind timeout, anyReady = " + anyReady);
+        if (mBindStartTime != 0 && !mBindTimedOut) {
+            mTimeouts.onTimeout(null, AdaptiveTimeouts.PHASE_BIND, getBindDeadline());
+            mBindTimedOut = true;
+        }
+        final List<ConnectSession> sessions = new ArrayList<ConnectSession>(mPendingSessions);
+        mPendingSessions.clear();
+        for (final ConnectSession session : sessions) {
+            if (anyReady)
+                doBTConnect(session);
+            else
+                finishSession(session, false);
+        }
+    }
+
+    private boolean isDevicePaired(final String address) {
+        if (!mBondedDeviceIndex.isSeeded())
+            mBondedDeviceIndex.seed(mBtStack.getBondedAddresses(), mScheduler.now());
+        if (mBondedDeviceIndex.isBonded(address))
+            return true;
         Log.w(TAG, "device not paired!");
         return false;
     }
 
-    private boolean createBond(final Class invokedClass, final BluetoothDevice bluetoothDevice) throws Exception {
-        final Method createBondMethod = invokedClass.getMethod(BLUETOOTHDEVICE_CREATE_BOND);
-        final Boolean returnValue = (Boolean)createBondMethod.invoke(bluetoothDevice);
-        return returnValue.booleanValue();
+    /** Starts the next queued bond unless one is already outstanding. */
+    private void pumpBondQueue() {
+        while (mBondingSession == null && !mBondQueue.isEmpty()) {
+            final ConnectSession session = mBondQueue.poll();
+            try {
+                pairToDevice(session);
+            } catch (final Exception e) {
+                e.printStackTrace();
+                mBondingSession = null;
+                mBtStack.setPairingTarget(null, null);
+                mScheduler.removeCallbacks(mBondTimeoutRunnable);
+                finishSession(session, false);
+            }
+        }
+    }
+
+    /**
+     * Starts bonding and returns immediately; the connect continues from
+     * {@link #onBondFinished()} once the bond broadcast or the timeout arrives.
+     */
+    private void pairToDevice(final ConnectSession session) throws Exception {
+        mBondingSession = session;
+        session.stage = ConnectSession.STAGE_BONDING;
+        session.bondAttempts++;
+        session.bondStartTime = mScheduler.now();
+        mScheduler.post(mBondTimeoutRunnable, getBondDeadline(session.address));
+        // An inquiry in progress slows paging down considerably.
+        if (mBtStack.isDiscovering())
+            mBtStack.cancelDiscovery();
+        mBtStack.setPairingTarget(session.address, mPinTable.getPin(session.address, session.bondAttempts));
+        if (!mBtStack.createBond(session.address)) {
+            Log.w(TAG, "createBond refused for " + session.address);
+            onBondFinished(false);
+            return;
+        }
+        session.bondCreated = true;
+        Log.v(TAG, "pairToDevice " + session.address);
     }
 
-    private void pairToDevice() throws Exception {
-        createBond(mBluetoothDevice.getClass(),mBluetoothDevice);
-        Log.v(TAG, "pairToDevice");
-        try {
-            final long time = System.currentTimeMillis();
-            while (!isDevicePaired(mBluetoothAdapter.getBondedDevices())) {
-                if ((System.currentTimeMillis() - time) > CHECK_BLUETOOTH_PAIR_TIMEOUT)
-                    break;
-                Thread.sleep(CHECK_BLUETOOTH_PAIR_INTERVAL);
+    private long getBondDeadline(final String address) {
+        return mTimeouts.getDeadline(address, AdaptiveTimeouts.PHASE_BOND, CHECK_BLUETOOTH_PAIR_TIMEOUT);
+    }
+
+    private long getConnectDeadline(final ConnectSession.Leg leg) {
+        return mTimeouts.getDeadline(leg.session.address, getTimeoutPhase(leg.profile), mConnectTimeout);
+    }
+
+    private static int getTimeoutPhase(final int profile) {
+        return profile == BluetoothProfile.HEADSET
+                ? AdaptiveTimeouts.PHASE_CONNECT_HEADSET
+                : AdaptiveTimeouts.PHASE_CONNECT_A2DP;
+    }
+
+    private void onBondFinished(final boolean bonded) {
+        final ConnectSession session = mBondingSession;
+        if (session == null)
+            return;
+        mBondingSession = null;
+        mBtStack.setPairingTarget(null, null);
+        mMetrics.record(ConnectMetrics.PHASE_BOND, mScheduler.now() - session.bondStartTime);
+        mScheduler.removeCallbacks(mBondTimeoutRunnable);
+        if (bonded && session.origin == ConnectSession.ORIGIN_SPECULATIVE && session.batch != null && !areProfileServicesReady()) {
+            // a confirmed speculative bond can finish before the proxies are in
+            waitForProfileServices(session);
+        } else if (bonded) {
+            try {
+                connectIfNeeded(session);
+            } catch (final Exception e) {
+                e.printStackTrace();
+                finishSession(session, false);
             }
-        } catch (final InterruptedException e) {
+        } else if (mRetryPolicy.shouldRetry(RetryPolicy.PHASE_BOND, session.bondAttempts)
+                || session.bondAttempts < mPinTable.getPins(session.address).size()) {
+            // the bond budget stretches to try every PIN in the table
+            final long delay = mRetryPolicy.nextDelay(session.bondAttempts);
+            Log.w(TAG, "bond failed for " + session.address + ", retry in " + delay + " ms");
+            session.stage = ConnectSession.STAGE_QUEUED;
+            mScheduler.sendMessage(MSG_RETRY_BOND, 0, session, delay);
+        } else {
+            Log.w(TAG, "bond failed for " + session.address);
+            finishSession(session, false);
+        }
+        pumpBondQueue();
+    }
+
+    private void onRetryBond(final ConnectSession session) {
+        if (session.stage == ConnectSession.STAGE_DONE)
+            return;
+        mBondQueue.add(session);
+        pumpBondQueue();
+    }
+
+    private void onLegFailed(final ConnectSession.Leg leg) {
+        mScheduler.removeMessages(MSG_CONNECT_TIMEOUT, leg);
+        leg.issueTime = 0;
+        if (mRetryPolicy.shouldRetry(RetryPolicy.PHASE_CONNECT, leg.attempts)) {
+            final long delay = mRetryPolicy.nextDelay(leg.attempts);
+            Log.w(TAG, BatchResult.profileName(leg.profile) + " connect failed for " + leg.session.address
+                    + ", retry in " + delay + " ms");
+            mScheduler.sendMessage(MSG_RETRY_CONNECT, 0, leg, delay);
+        } else {
+            leg.done = true;
+            onLegFinished(leg.session);
+        }
+    }
+
+    /** Finishes the session once every leg has an outcome. */
+    private void onLegFinished(final ConnectSession session) {
+        if (session.stage != ConnectSession.STAGE_DONE && session.allLegsDone())
+            finishSession(session, session.allLegsSucceeded());
+    }
+
+    private void onRetryConnect(final ConnectSession.Leg leg) {
+        if (leg.session.stage == ConnectSession.STAGE_DONE)
+            return;
+        try {
+            connectLeg(leg);
+        } catch (final Exception e) {
             e.printStackTrace();
+            finishSession(leg.session, false);
         }
     }
 
-    private void connectToA2dp(final BluetoothDevice device) throws Exception{
-        final boolean isSuccess;
-        if(isAboveJBMR1()){
-            isSuccess = mIBluetoothA2dp.connect(device);
-        }else{
-            isSuccess = (Boolean)mBluetoothA2dp.getClass().getMethod("connect", BluetoothDevice.class).invoke(mBluetoothA2dp, device);
+    private void onCancel(final String address) {
+        final ConnectSession session = mSessions.get(address);
+        if (session == null)
+            return;
+        Log.v(TAG, "cancel " + address);
+        mScheduler.removeMessages(MSG_RETRY_BOND, session);
+        for (final ConnectSession.Leg leg : session.legs) {
+            mScheduler.removeMessages(MSG_RETRY_CONNECT, leg);
+            mScheduler.removeMessages(MSG_CONNECT_TIMEOUT, leg);
         }
-        Log.v(TAG, "connectToA2dp, isSuccess = "+isSuccess);
-        if(isSuccess){
-            mMainHandler.sendEmptyMessage(BTAutoPair.MSG_CONNECT_SUCCESS);
-        }else{
-            mMainHandler.sendEmptyMessage(BTAutoPair.MSG_CONNECT_FAIL);
+        mBondQueue.remove(session);
+        mPendingSessions.remove(session);
+        if (mBondingSession == session) {
+            mBondingSession = null;
+            mBtStack.setPairingTarget(null, null);
+            mScheduler.removeCallbacks(mBondTimeoutRunnable);
         }
+        session.cancelled = true;
+        finishSession(session, false);
+        pumpBondQueue();
     }
 
-    private boolean isA2dpConnected() throws Exception {
-        if(isAboveJBMR1()){
-            return isA2dpConnectAboveJBMR1();
-        }else{
-            return isA2dpConnectBelowJBMR1();
+    private void connectLeg(final ConnectSession.Leg leg) throws Exception {
+        final ConnectSession session = leg.session;
+        leg.attempts++;
+        leg.issueTime = mScheduler.now();
+        leg.lastIssueTime = leg.issueTime;
+        if (leg.profile == BluetoothProfile.A2DP)
+            mMetrics.record(ConnectMetrics.PHASE_CONNECT_ISSUED, leg.issueTime - session.requestTime);
+        final boolean isSuccess = leg.profile == BluetoothProfile.HEADSET
+                ? mBtStack.connectHeadset(session.address)
+                : connectToA2dp(session.address);
+        Log.v(TAG, "connect " + BatchResult.profileName(leg.profile) + ", isSuccess = " + isSuccess);
+        if (!isSuccess) {
+            onLegFailed(leg);
+            return;
         }
+        // Accepted only; the leg completes on STATE_CONNECTED or the deadline.
+        mScheduler.sendMessage(MSG_CONNECT_TIMEOUT, 0, leg, getConnectDeadline(leg));
     }
 
-    private boolean isA2dpConnectAboveJBMR1() throws RemoteException{
-        final int state = mIBluetoothA2dp.getConnectionState(mBluetoothDevice);
-        Log.v(TAG, "A2dp state = " + state);
-        if (state == BluetoothProfile.STATE_CONNECTED)
-            return true;
-        return false;
+    private boolean connectToA2dp(final String address) {
+        return mBtStack.connectA2dp(address);
     }
 
-    private boolean isA2dpConnectBelowJBMR1() throws RemoteException{
-        final int state = mBluetoothA2dp.getConnectionState(mBluetoothDevice);
-        Log.v(TAG, "A2dp state = " + state);
-        if (state == BluetoothProfile.STATE_CONNECTED)
-            return true;
-        return false;
+    private void onConnectTimeout(final ConnectSession.Leg leg) {
+        if (leg.done || leg.session.stage == ConnectSession.STAGE_DONE)
+            return;
+        Log.w(TAG, BatchResult.profileName(leg.profile) + " connect timeout for " + leg.session.address);
+        mTimeouts.onTimeout(leg.session.address, getTimeoutPhase(leg.profile), getConnectDeadline(leg));
+        onLegFailed(leg);
+    }
+
+    private void onProfileStateChanged(final int profile, final String address, final int state,
+            final int previousState) {
+        final ConnectSession session = mSessions.get(address);
+        if (session == null) {
+            if (profile != BluetoothProfile.A2DP)
+                return;
+            if (state == BluetoothProfile.STATE_CONNECTED)
+                mWatchdog.onConnected(address, -1);
+            else if (state == BluetoothProfile.STATE_DISCONNECTED && previousState == BluetoothProfile.STATE_CONNECTED)
+                mWatchdog.onLinkLost(address);
+            return;
+        }
+        final ConnectSession.Leg leg = session.getLeg(profile);
+        if (leg == null || leg.done || session.stage != ConnectSession.STAGE_CONNECTING)
+            return;
+        if (state == BluetoothProfile.STATE_CONNECTED) {
+            // also a late success of an attempt already given up on; its retry is no longer needed
+            mScheduler.removeMessages(MSG_CONNECT_TIMEOUT, leg);
+            mScheduler.removeMessages(MSG_RETRY_CONNECT, leg);
+            leg.issueTime = 0;
+            leg.latency = leg.lastIssueTime != 0 ? mScheduler.now() - leg.lastIssueTime : 0;
+            mTimeouts.observe(address, getTimeoutPhase(profile), leg.latency);
+            if (profile == BluetoothProfile.A2DP)
+                mMetrics.record(ConnectMetrics.PHASE_CONNECTED, leg.latency);
+            leg.done = true;
+            leg.success = true;
+            onLegFinished(session);
+        } else if (state == BluetoothProfile.STATE_DISCONNECTED && leg.issueTime != 0
+                && previousState != BluetoothProfile.STATE_DISCONNECTED) {
+            Log.w(TAG, BatchResult.profileName(profile) + " connect dropped for " + address);
+            onLegFailed(leg);
+        }
+    }
+
+    private void disconnectA2dp(final String address) {
+        final boolean isSuccess = mBtStack.disconnectA2dp(address);
+        Log.v(TAG, "disconnectA2dp, isSuccess = " + isSuccess);
+    }
+
+    private void setA2dpPriority(final String address, final int priority) {
+        final boolean isSuccess = mBtStack.setA2dpPriority(address, priority);
+        Log.v(TAG, "setA2dpPriority " + priority + ", isSuccess = " + isSuccess);
+    }
+
+    private int getProfileConnectionState(final int profile, final String address) {
+        final int state = profile == BluetoothProfile.HEADSET
+                ? mBtStack.getHeadsetConnectionState(address)
+                : mBtStack.getA2dpConnectionState(address);
+        Log.v(TAG, BatchResult.profileName(profile) + " state = " + state);
+        return state;
     }
 
     private void onInit() throws SecurityException {
         Log.v(TAG, "onInit");
-        onInitWorker();
-        bindToA2dpService();
+        mLastKnownDeviceStore.load();
+        mTimeouts.load();
+        setState(STATE_BINDING);
+        mBindStartTime = mScheduler.now();
+        mBindTimedOut = false;
+        mBtStack.open(mBtStackCallback, mWorkerExecutor);
+        // after open, so a recorded run starts at OP_OPEN; callbacks come
+        // through the worker, so none can arrive before the index is seeded
+        mBondedDeviceIndex.seed(mBtStack.getBondedAddresses(), mScheduler.now());
     }
 
-    public void destroy() throws Exception {
+    /**
+     * Stops the engine. Requests already queued on the worker still run
+     * first; timeouts, retries and anything else still pending are dropped
+     * when the destroy is handled, then the stack is closed on the worker
+     * thread and the thread exits. Safe to call more than once and from any
+     * thread.
+     */
+    public void destroy() {
         Log.v(TAG, "destroy");
-        onDispatchWorker();
-        mMainHandler = null;
-        if (mContext != null) {
-            unBindToA2dpService();
-            mContext = null;
-        }
+        mScheduler.sendMessage(MSG_DESTROY, 0, null, 0);
+    }
+
+    private void onDestroy() {
+        setState(STATE_CLOSED);
+        mScheduler.removeAll();
+        mSessions.clear();
+        mPendingSessions.clear();
+        mBondQueue.clear();
+        mBondingSession = null;
+        mListener = null;
+        mBtStack.close();
+        mScheduler.quit();
     }
 
 }
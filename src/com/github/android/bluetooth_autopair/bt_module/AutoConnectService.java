@@ -0,0 +1,222 @@
+
+package com.github.android.bluetooth_autopair.bt_module;
+
+import android.app.Service;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Message;
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.github.android.bluetooth_autopair.BTAutoPair;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+
+/**
+ * Owns one {@link AutoConnect} engine for the life of the process, so its
+ * worker thread, bond queue and A2DP service binding outlive any Activity.
+ * Clients bind with {@link IAutoConnectService} and get results through
+ * {@link IAutoConnectCallback}. {@code adb shell dumpsys activity service
+ * AutoConnectService} prints the connect latency percentiles.
+ * <p>
+ * Every stack call and broadcast is kept in a {@link FlightRecorder} trace,
+ * {@value #FLIGHT_TRACE_FILE} in the files directory, which
+ * {@link ReplayBtStack} can play back off the device.
+ */
+public class AutoConnectService extends Service {
+
+    private static final String TAG = AutoConnectService.class.getSimpleName();
+
+    public static final String FLIGHT_TRACE_FILE = "flight_trace.bin";
+
+    private AutoConnect mAutoConnect = null;
+
+    private final RemoteCallbackList<IAutoConnectCallback> mCallbacks = new RemoteCallbackList<IAutoConnectCallback>();
+
+    private final ResultHandler mHandler = new ResultHandler();
+
+    private class ResultHandler extends Handler {
+
+        @Override
+        public void handleMessage(final Message msg) {
+            switch (msg.what) {
+                case BTAutoPair.MSG_CONNECT_SUCCESS:
+                case BTAutoPair.MSG_CONNECT_FAIL:
+                    notifyConnectResult((String) msg.obj, msg.what == BTAutoPair.MSG_CONNECT_SUCCESS);
+                    break;
+                case BTAutoPair.MSG_BATCH_COMPLETE:
+                    notifyBatchComplete(((BatchResult) msg.obj).toJson());
+                    break;
+            }
+        }
+    }
+
+    /** Hops engine results from the worker thread to the main thread. */
+    private final AutoConnect.Listener mListener = new AutoConnect.Listener() {
+
+        @Override
+        public void onConnectResult(final String address, final boolean success) {
+            mHandler.obtainMessage(success ? BTAutoPair.MSG_CONNECT_SUCCESS : BTAutoPair.MSG_CONNECT_FAIL,
+                    address).sendToTarget();
+        }
+
+        @Override
+        public void onBatchComplete(final BatchResult result) {
+            mHandler.obtainMessage(BTAutoPair.MSG_BATCH_COMPLETE, result).sendToTarget();
+        }
+    };
+
+    private final IAutoConnectService.Stub mBinder = new IAutoConnectService.Stub() {
+
+        @Override
+        public void connect(final List<String> addresses) {
+            if (addresses == null) {
+                Log.w(TAG, "connect without addresses");
+                return;
+            }
+            mAutoConnect.startConnectByAddress(addresses);
+        }
+
+        @Override
+        public void disconnect(final String address) {
+            final BluetoothDevice device = getDevice(address);
+            if (device != null)
+                mAutoConnect.disconnect(device);
+        }
+
+        @Override
+        public void cancel(final String address) {
+            final BluetoothDevice device = getDevice(address);
+            if (device != null)
+                mAutoConnect.cancel(device);
+        }
+
+        @Override
+        public void watch(final String address) {
+            final BluetoothDevice device = getDevice(address);
+            if (device != null)
+                mAutoConnect.watch(device);
+        }
+
+        @Override
+        public void unwatch(final String address) {
+            final BluetoothDevice device = getDevice(address);
+            if (device != null)
+                mAutoConnect.unwatch(device);
+        }
+
+        @Override
+        public void reconnectLastKnown() {
+            mAutoConnect.reconnectLastKnown();
+        }
+
+        @Override
+        public boolean prepare(final String address) {
+            return mAutoConnect.prepare(address);
+        }
+
+        @Override
+        public String getLastKnownAddress() {
+            final LastKnownDeviceStore.Entry entry = mAutoConnect.getLastKnownDeviceStore().getMostRecent();
+            return entry != null ? entry.address : null;
+        }
+
+        @Override
+        public String getMetricsJson() {
+            return mAutoConnect.getMetrics().dumpJson();
+        }
+
+        @Override
+        public void registerCallback(final IAutoConnectCallback callback) {
+            if (callback != null)
+                mCallbacks.register(callback);
+        }
+
+        @Override
+        public void unregisterCallback(final IAutoConnectCallback callback) {
+            if (callback != null)
+                mCallbacks.unregister(callback);
+        }
+    };
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        Log.v(TAG, "onCreate");
+        final Scheduler scheduler = new LooperScheduler("WorkerThread");
+        BtStack btStack = new AndroidBtStack(this);
+        try {
+            // closed by the RecordingBtStack when the engine closes the stack on its worker
+            btStack = new RecordingBtStack(btStack, new FlightRecorder(new File(getFilesDir(), FLIGHT_TRACE_FILE),
+                    FlightRecorder.DEFAULT_CAPACITY, scheduler));
+        } catch (final IOException e) {
+            Log.w(TAG, "flight recorder unavailable", e);
+        }
+        mAutoConnect = new AutoConnect(mListener, btStack, getFilesDir(), scheduler);
+        final BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        if (adapter != null && adapter.isEnabled())
+            mAutoConnect.reconnectLastKnown();
+    }
+
+    @Override
+    public int onStartCommand(final Intent intent, final int flags, final int startId) {
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(final Intent intent) {
+        return mBinder;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        Log.v(TAG, "onDestroy");
+        mCallbacks.kill();
+        mHandler.removeCallbacksAndMessages(null);
+        mAutoConnect.destroy();
+    }
+
+    @Override
+    protected void dump(final FileDescriptor fd, final PrintWriter writer, final String[] args) {
+        writer.println(mAutoConnect.getMetrics().dump());
+    }
+
+    private static BluetoothDevice getDevice(final String address) {
+        if (!BluetoothAdapter.checkBluetoothAddress(address))
+            return null;
+        return BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address);
+    }
+
+    private void notifyConnectResult(final String address, final boolean success) {
+        final int count = mCallbacks.beginBroadcast();
+        for (int i = 0; i < count; i++) {
+            try {
+                mCallbacks.getBroadcastItem(i).onConnectResult(address, success);
+            } catch (final RemoteException e) {
+                // the callback list drops dead clients by itself
+            }
+        }
+        mCallbacks.finishBroadcast();
+    }
+
+    private void notifyBatchComplete(final String resultJson) {
+        final int count = mCallbacks.beginBroadcast();
+        for (int i = 0; i < count; i++) {
+            try {
+                mCallbacks.getBroadcastItem(i).onBatchComplete(resultJson);
+            } catch (final RemoteException e) {
+                // the callback list drops dead clients by itself
+            }
+        }
+        mCallbacks.finishBroadcast();
+    }
+}
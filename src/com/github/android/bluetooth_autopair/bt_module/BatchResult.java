@@ -0,0 +1,112 @@
+
+package com.github.android.bluetooth_autopair.bt_module;
+
+import android.bluetooth.BluetoothProfile;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outcome of a group of devices passed to {@link AutoConnect}, delivered with
+ * {@link com.github.android.bluetooth_autopair.BTAutoPair#MSG_BATCH_COMPLETE}.
+ */
+public class BatchResult {
+
+    public static final class Entry {
+
+        public final String address;
+
+        public final boolean success;
+
+        public final long elapsedMs;
+
+        /** Profiles that were connected, e.g. {@link BluetoothProfile#A2DP}. */
+        public final int[] profiles;
+
+        /** Connect latency of each entry in {@link #profiles}, -1 if it failed. */
+        public final long[] profileLatencyMs;
+
+        Entry(final String address, final boolean success, final long elapsedMs, final int[] profiles,
+                final long[] profileLatencyMs) {
+            this.address = address;
+            this.success = success;
+            this.elapsedMs = elapsedMs;
+            this.profiles = profiles;
+            this.profileLatencyMs = profileLatencyMs;
+        }
+    }
+
+    static String profileName(final int profile) {
+        switch (profile) {
+            case BluetoothProfile.A2DP:
+                return "a2dp";
+            case BluetoothProfile.HEADSET:
+                return "headset";
+            default:
+                return "profile" + profile;
+        }
+    }
+
+    private final List<Entry> mEntries;
+
+    private final long mElapsedMs;
+
+    BatchResult(final List<Entry> entries, final long elapsedMs) {
+        mEntries = Collections.unmodifiableList(entries);
+        mElapsedMs = elapsedMs;
+    }
+
+    public List<Entry> getEntries() {
+        return mEntries;
+    }
+
+    public long getElapsedMs() {
+        return mElapsedMs;
+    }
+
+    public int getSuccessCount() {
+        int count = 0;
+        for (final Entry entry : mEntries) {
+            if (entry.success)
+                count++;
+        }
+        return count;
+    }
+
+    public float getDevicesPerMinute() {
+        if (mElapsedMs <= 0)
+            return 0;
+        return mEntries.size() * 60000f / mElapsedMs;
+    }
+
+    /** Per-device timings and throughput as a JSON object. */
+    public String toJson() {
+        final StringBuilder sb = new StringBuilder("{\"elapsedMs\":").append(mElapsedMs)
+                .append(",\"devicesPerMinute\":").append(getDevicesPerMinute())
+                .append(",\"succeeded\":").append(getSuccessCount())
+                .append(",\"devices\":[");
+        for (int i = 0; i < mEntries.size(); i++) {
+            final Entry entry = mEntries.get(i);
+            if (i > 0)
+                sb.append(',');
+            sb.append("{\"address\":\"").append(entry.address)
+                    .append("\",\"success\":").append(entry.success)
+                    .append(",\"elapsedMs\":").append(entry.elapsedMs)
+                    .append(",\"profiles\":{");
+            for (int p = 0; p < entry.profiles.length; p++) {
+                if (p > 0)
+                    sb.append(',');
+                sb.append('"').append(profileName(entry.profiles[p])).append("\":")
+                        .append(entry.profileLatencyMs[p]);
+            }
+            sb.append("}}");
+        }
+        return sb.append("]}").toString();
+    }
+
+    @Override
+    public String toString() {
+        return "BatchResult{" + getSuccessCount() + "/" + mEntries.size() + " connected in "
+                + mElapsedMs + " ms, " + getDevicesPerMinute() + " devices/min}";
+    }
+}
@@ -0,0 +1,48 @@
+
+package com.github.android.bluetooth_autopair.bt_module;
+
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.util.Log;
+
+/**
+ * Forwards {@link BluetoothDevice#ACTION_BOND_STATE_CHANGED} broadcasts to a
+ * {@link Listener}, so callers can react to bond transitions instead of polling
+ * {@link android.bluetooth.BluetoothAdapter#getBondedDevices()}.
+ */
+public class BondStateMonitor extends RegisteredReceiver {
+
+    private static final String TAG = BondStateMonitor.class.getSimpleName();
+
+    public interface Listener {
+
+        void onBondStateChanged(BluetoothDevice device, int bondState, int previousBondState);
+    }
+
+    private final Listener mListener;
+
+    public BondStateMonitor(final Context context, final Listener listener) {
+        super(context);
+        mListener = listener;
+    }
+
+    @Override
+    protected IntentFilter createFilter() {
+        return new IntentFilter(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
+    }
+
+    @Override
+    public void onReceive(final Context context, final Intent intent) {
+        if (!BluetoothDevice.ACTION_BOND_STATE_CHANGED.equals(intent.getAction()))
+            return;
+        final BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+        if (device == null)
+            return;
+        final int state = intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE, BluetoothDevice.ERROR);
+        final int previousState = intent.getIntExtra(BluetoothDevice.EXTRA_PREVIOUS_BOND_STATE, BluetoothDevice.ERROR);
+        Log.v(TAG, "bond state " + previousState + " -> " + state);
+        mListener.onBondStateChanged(device, state, previousState);
+    }
+}
@@ -0,0 +1,72 @@
+
+package com.github.android.bluetooth_autopair.bt_module;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Bonded devices keyed by MAC address. Seeded once from
+ * {@link BtStack#getBondedAddresses()} and kept current
+ * from bond state broadcasts, so a paired check is a single map lookup instead
+ * of a scan with a {@code getName()} IPC per bonded device.
+ * <p>
+ * Not thread safe; AutoConnect only touches it from its worker thread.
+ */
+public class BondedDeviceIndex {
+
+    public static final class BondRecord {
+
+        public final String address;
+
+        public final int bondState;
+
+        public final long updateTime;
+
+        BondRecord(final String address, final int bondState, final long updateTime) {
+            this.address = address;
+            this.bondState = bondState;
+            this.updateTime = updateTime;
+        }
+    }
+
+    private final Map<String, BondRecord> mRecords = new HashMap<String, BondRecord>();
+
+    private boolean mSeeded = false;
+
+    public void seed(final Set<String> bondedAddresses, final long now) {
+        mRecords.clear();
+        if (bondedAddresses != null) {
+            for (final String address : bondedAddresses)
+                mRecords.put(address, new BondRecord(address, BluetoothDevice.BOND_BONDED, now));
+        }
+        mSeeded = true;
+    }
+
+    public boolean isSeeded() {
+        return mSeeded;
+    }
+
+    public void onBondStateChanged(final String address, final int bondState, final long now) {
+        if (bondState == BluetoothDevice.BOND_NONE) {
+            mRecords.remove(address);
+        } else {
+            mRecords.put(address, new BondRecord(address, bondState, now));
+        }
+    }
+
+    public BondRecord get(final String address) {
+        return mRecords.get(address);
+    }
+
+    public boolean isBonded(final String address) {
+        final BondRecord record = mRecords.get(address);
+        return record != null && record.bondState == BluetoothDevice.BOND_BONDED;
+    }
+
+    public int size() {
+        return mRecords.size();
+    }
+}
@@ -0,0 +1,93 @@
+
+package com.github.android.bluetooth_autopair.bt_module;
+
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * The Bluetooth operations AutoConnect needs, addressed by MAC address so
+ * that an implementation does not have to hand out framework objects.
+ * {@link AndroidBtStack} wraps the platform adapter, broadcasts and A2DP
+ * service; {@link SimulatedBtStack} is a plain Java stand-in.
+ * <p>
+ * Besides A2DP the stack can connect {@link android.bluetooth.BluetoothProfile#HEADSET};
+ * both proxies are requested together in {@link #open}.
+ * <p>
+ * State values are the framework constants, e.g.
+ * {@link android.bluetooth.BluetoothDevice#BOND_BONDED} and
+ * {@link android.bluetooth.BluetoothProfile#STATE_CONNECTED}.
+ */
+public interface BtStack {
+
+    interface Callback {
+
+        void onA2dpServiceConnected();
+
+        void onA2dpServiceDisconnected();
+
+        void onBondStateChanged(String address, int bondState, int previousBondState);
+
+        void onA2dpStateChanged(String address, int state, int previousState);
+
+        void onHeadsetServiceConnected();
+
+        void onHeadsetServiceDisconnected();
+
+        void onHeadsetStateChanged(String address, int state, int previousState);
+
+        void onAclStateChanged(String address, boolean connected);
+    }
+
+    /**
+     * Requests the A2DP and headset proxies in parallel and starts listening.
+     * Every callback is run through {@code callbackExecutor}.
+     */
+    void open(Callback callback, Executor callbackExecutor);
+
+    void close();
+
+    boolean isEnabled();
+
+    boolean isA2dpServiceReady();
+
+    Set<String> getBondedAddresses();
+
+    int getBondState(String address);
+
+    boolean createBond(String address);
+
+    /** Unpairs {@code address}; {@link Callback#onBondStateChanged} reports BOND_NONE. */
+    boolean removeBond(String address);
+
+    /** Stops a bond in progress with {@code address}, which then ends with BOND_NONE. */
+    boolean cancelBond(String address);
+
+    /**
+     * Answers pairing requests from {@code address} without user interaction,
+     * using {@code pin} where a PIN or passkey is asked for. A null address
+     * stops answering.
+     */
+    void setPairingTarget(String address, String pin);
+
+    boolean startDiscovery();
+
+    boolean cancelDiscovery();
+
+    boolean isDiscovering();
+
+    boolean connectA2dp(String address);
+
+    boolean disconnectA2dp(String address);
+
+    boolean setA2dpPriority(String address, int priority);
+
+    int getA2dpConnectionState(String address);
+
+    boolean isHeadsetServiceReady();
+
+    boolean connectHeadset(String address);
+
+    boolean disconnectHeadset(String address);
+
+    int getHeadsetConnectionState(String address);
+}
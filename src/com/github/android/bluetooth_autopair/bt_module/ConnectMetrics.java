@@ -0,0 +1,140 @@
+
+package com.github.android.bluetooth_autopair.bt_module;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency of each connect phase, in milliseconds measured with
+ * {@link android.os.SystemClock#elapsedRealtime()}. Each phase keeps its last
+ * {@link #CAPACITY} samples in a ring; {@link #record(int, long)} neither
+ * locks nor allocates, so it is safe on the worker thread, and the dump
+ * methods may be called from any thread.
+ */
+public class ConnectMetrics {
+
+    /** From binding the A2DP service until the proxy is available. */
+    public static final int PHASE_BIND = 0;
+
+    /** From createBond until the bond broadcast (or timeout). */
+    public static final int PHASE_BOND = 1;
+
+    /** From the connect request until the A2DP connect is issued. */
+    public static final int PHASE_CONNECT_ISSUED = 2;
+
+    /** From the A2DP connect call until the STATE_CONNECTED broadcast. */
+    public static final int PHASE_CONNECTED = 3;
+
+    /** From the connect request until the device is connected. */
+    public static final int PHASE_TOTAL = 4;
+
+    /** From a watched device dropping its link until it is connected again. */
+    public static final int PHASE_OUTAGE = 5;
+
+    /** From a watchdog reconnect request until the device is connected. */
+    public static final int PHASE_RECONNECT = 6;
+
+    /**
+     * Same as {@link #PHASE_TOTAL} for devices whose bond was started
+     * speculatively during discovery, so the two paths can be compared.
+     */
+    public static final int PHASE_SPECULATIVE_TOTAL = 7;
+
+    private static final int PHASE_COUNT = 8;
+
+    private static final String[] PHASE_NAMES = {
+            "bind", "bond", "connect_issued", "connected", "total", "outage", "reconnect",
+            "speculative_total"
+    };
+
+    public static final int CAPACITY = 256;
+
+    private static final int MASK = CAPACITY - 1;
+
+    private static final class Ring {
+
+        final AtomicLongArray values = new AtomicLongArray(CAPACITY);
+
+        final AtomicLong count = new AtomicLong();
+
+        void add(final long value) {
+            final long index = count.getAndIncrement();
+            values.lazySet((int) (index & MASK), value);
+        }
+
+        long[] sortedSnapshot() {
+            final int size = (int) Math.min(count.get(), CAPACITY);
+            final long[] copy = new long[size];
+            for (int i = 0; i < size; i++)
+                copy[i] = values.get(i);
+            Arrays.sort(copy);
+            return copy;
+        }
+    }
+
+    private final Ring[] mRings = new Ring[PHASE_COUNT];
+
+    public ConnectMetrics() {
+        for (int i = 0; i < PHASE_COUNT; i++)
+            mRings[i] = new Ring();
+    }
+
+    public void record(final int phase, final long durationMs) {
+        mRings[phase].add(durationMs);
+    }
+
+    /** Total samples ever recorded for {@code phase}, including overwritten ones. */
+    public long getCount(final int phase) {
+        return mRings[phase].count.get();
+    }
+
+    /** @return the given percentile (0-100) over the retained samples, or -1 if none. */
+    public long getPercentile(final int phase, final int percentile) {
+        return percentile(mRings[phase].sortedSnapshot(), percentile);
+    }
+
+    private static long percentile(final long[] sorted, final int percentile) {
+        if (sorted.length == 0)
+            return -1;
+        final int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    /** One line per phase: count, p50, p95, p99 and max in milliseconds. */
+    public String dump() {
+        final StringBuilder sb = new StringBuilder();
+        for (int phase = 0; phase < PHASE_COUNT; phase++) {
+            final long[] sorted = mRings[phase].sortedSnapshot();
+            sb.append(PHASE_NAMES[phase])
+                    .append(": n=").append(getCount(phase))
+                    .append(" p50=").append(percentile(sorted, 50))
+                    .append(" p95=").append(percentile(sorted, 95))
+                    .append(" p99=").append(percentile(sorted, 99))
+                    .append(" max=").append(sorted.length == 0 ? -1 : sorted[sorted.length - 1])
+                    .append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Same figures as {@link #dump()} as a JSON object keyed by phase name,
+     * e.g. {@code {"bind":{"n":3,"p50":40,"p95":55,"p99":55,"max":55},...}}.
+     */
+    public String dumpJson() {
+        final StringBuilder sb = new StringBuilder("{");
+        for (int phase = 0; phase < PHASE_COUNT; phase++) {
+            final long[] sorted = mRings[phase].sortedSnapshot();
+            if (phase > 0)
+                sb.append(',');
+            sb.append('"').append(PHASE_NAMES[phase]).append("\":{")
+                    .append("\"n\":").append(getCount(phase))
+                    .append(",\"p50\":").append(percentile(sorted, 50))
+                    .append(",\"p95\":").append(percentile(sorted, 95))
+                    .append(",\"p99\":").append(percentile(sorted, 99))
+                    .append(",\"max\":").append(sorted.length == 0 ? -1 : sorted[sorted.length - 1])
+                    .append('}');
+        }
+        return sb.append('}').toString();
+    }
+}
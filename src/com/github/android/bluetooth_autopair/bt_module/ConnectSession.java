@@ -0,0 +1,179 @@
+
+package com.github.android.bluetooth_autopair.bt_module;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * State of one device moving through AutoConnect. Only touched on the
+ * worker thread.
+ */
+class ConnectSession {
+
+    static final int STAGE_QUEUED = 0;
+
+    static final int STAGE_BONDING = 1;
+
+    static final int STAGE_CONNECTING = 2;
+
+    static final int STAGE_DONE = 3;
+
+    /** Asked for through startConnect. */
+    static final int ORIGIN_USER = 0;
+
+    /** Started from discovery before anyone asked for this device. */
+    static final int ORIGIN_SPECULATIVE = 1;
+
+    /** Started by the {@link ReconnectWatchdog} after the link dropped. */
+    static final int ORIGIN_WATCHDOG = 2;
+
+    /** Connect of one profile within a session. */
+    static final class Leg {
+
+        final ConnectSession session;
+
+        /** {@link android.bluetooth.BluetoothProfile#A2DP} or {@code HEADSET}. */
+        final int profile;
+
+        int attempts = 0;
+
+        /** When the current connect was issued, 0 while none is outstanding. */
+        long issueTime = 0;
+
+        /** When the latest connect was issued; kept while a retry is waiting. */
+        long lastIssueTime = 0;
+
+        /** Issue to STATE_CONNECTED of the successful attempt, -1 otherwise. */
+        long latency = -1;
+
+        boolean done = false;
+
+        boolean success = false;
+
+        Leg(final ConnectSession session, final int profile) {
+            this.session = session;
+            this.profile = profile;
+        }
+    }
+
+    /**
+     * Devices submitted together; reported as one {@link BatchResult} once
+     * every session in it is done.
+     */
+    static class Batch {
+
+        final List<ConnectSession> sessions = new ArrayList<ConnectSession>();
+
+        final long startTime;
+
+        private int mRemaining = 0;
+
+        Batch(final long now) {
+            startTime = now;
+        }
+
+        void add(final ConnectSession session) {
+            sessions.add(session);
+            mRemaining++;
+        }
+
+        boolean isEmpty() {
+            return sessions.isEmpty();
+        }
+
+        boolean isDone() {
+            return mRemaining == 0;
+        }
+
+        /** @return true when this was the last outstanding session. */
+        boolean onSessionFinished() {
+            mRemaining--;
+            return mRemaining == 0;
+        }
+
+        BatchResult toResult(final long now) {
+            final List<BatchResult.Entry> entries = new ArrayList<BatchResult.Entry>(sessions.size());
+            for (final ConnectSession session : sessions) {
+                final int[] profiles = new int[session.legs.length];
+                final long[] latencies = new long[session.legs.length];
+                for (int i = 0; i < session.legs.length; i++) {
+                    profiles[i] = session.legs[i].profile;
+                    latencies[i] = session.legs[i].latency;
+                }
+                entries.add(new BatchResult.Entry(session.address, session.success,
+                        session.finishTime - session.requestTime, profiles, latencies));
+            }
+            return new BatchResult(entries, now - startTime);
+        }
+    }
+
+    final String address;
+
+    /** Null until a user request adopts a speculative or watchdog session. */
+    Batch batch;
+
+    final long startTime;
+
+    /** When the connect was asked for; later than {@link #startTime} for an adopted session. */
+    long requestTime;
+
+    /** One of the {@code ORIGIN_*} constants; kept when a batch adopts the session. */
+    final int origin;
+
+    /** Bonded and waiting for a speculative session to be confirmed. */
+    boolean held = false;
+
+    int stage = STAGE_QUEUED;
+
+    /** One per requested profile, all connected concurrently once bonded. */
+    final Leg[] legs;
+
+    long bondStartTime;
+
+    int bondAttempts = 0;
+
+    /** createBond was accepted for this session, so an expired speculation has a bond to undo. */
+    boolean bondCreated = false;
+
+    boolean cancelled = false;
+
+    long finishTime;
+
+    boolean success = false;
+
+    ConnectSession(final String address, final Batch batch, final int[] profiles, final int origin,
+            final long now) {
+        this.address = address;
+        this.batch = batch;
+        this.origin = origin;
+        startTime = now;
+        requestTime = now;
+        legs = new Leg[profiles.length];
+        for (int i = 0; i < profiles.length; i++)
+            legs[i] = new Leg(this, profiles[i]);
+    }
+
+    Leg getLeg(final int profile) {
+        for (final Leg leg : legs) {
+            if (leg.profile == profile)
+                return leg;
+        }
+        return null;
+    }
+
+    boolean allLegsDone() {
+        for (final Leg leg : legs) {
+            if (!leg.done)
+                return false;
+        }
+        return true;
+    }
+
+    boolean allLegsSucceeded() {
+        for (final Leg leg : legs) {
+            if (!leg.success)
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,162 @@
+
+package com.github.android.bluetooth_autopair.bt_module;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+import android.os.ParcelUuid;
+import android.os.Parcelable;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Holds back discovered devices that arrived without a name until they can be
+ * shown. A device is handed to the {@link Listener} as soon as its name comes
+ * in through {@link BluetoothDevice#ACTION_NAME_CHANGED}, or when an SDP
+ * lookup finds it is an A2DP sink. At most {@link #MAX_SDP_IN_FLIGHT}
+ * lookups run at a time, so they do not starve the inquiry.
+ * <p>
+ * Owned by the UI thread.
+ */
+public class DeviceResolver {
+
+    private static final String TAG = DeviceResolver.class.getSimpleName();
+
+    /** Service class UUID of an A2DP sink (AudioSink, 0x110B). */
+    public static final ParcelUuid AUDIO_SINK_UUID = ParcelUuid.fromString("0000110B-0000-1000-8000-00805F9B34FB");
+
+    private static final int MAX_SDP_IN_FLIGHT = 2;
+
+    private static final int SDP_TIMEOUT = 6000;
+
+    public interface Listener {
+
+        void onResolved(DeviceSnapshot snapshot);
+    }
+
+    private final class Lookup implements Runnable {
+
+        final DeviceSnapshot snapshot;
+
+        boolean sdpStarted = false;
+
+        Lookup(final DeviceSnapshot snapshot) {
+            this.snapshot = snapshot;
+        }
+
+        /** SDP timeout: give up on this device and free the slot. */
+        @Override
+        public void run() {
+            Log.v(TAG, "sdp timeout " + snapshot.getAddress());
+            remove(this);
+        }
+    }
+
+    private final Handler mHandler;
+
+    private final Listener mListener;
+
+    private final Map<String, Lookup> mLookups = new HashMap<String, Lookup>();
+
+    private final LinkedList<Lookup> mSdpQueue = new LinkedList<Lookup>();
+
+    private int mSdpInFlight = 0;
+
+    public DeviceResolver(final Handler handler, final Listener listener) {
+        mHandler = handler;
+        mListener = listener;
+    }
+
+    public boolean isPending(final String address) {
+        return mLookups.containsKey(address);
+    }
+
+    /** Snapshot still waiting for its name or SDP record, or null. */
+    public DeviceSnapshot getPending(final String address) {
+        final Lookup lookup = mLookups.get(address);
+        return lookup != null ? lookup.snapshot : null;
+    }
+
+    /** Stops resolving {@code address}, e.g. because it got listed another way. */
+    public void cancel(final String address) {
+        final Lookup lookup = mLookups.get(address);
+        if (lookup != null)
+            remove(lookup);
+    }
+
+    public void enqueue(final DeviceSnapshot snapshot) {
+        if (mLookups.containsKey(snapshot.getAddress()))
+            return;
+        final Lookup lookup = new Lookup(snapshot);
+        mLookups.put(snapshot.getAddress(), lookup);
+        mSdpQueue.add(lookup);
+        pump();
+    }
+
+    public void onNameChanged(final String address, final String name) {
+        final Lookup lookup = mLookups.get(address);
+        if (lookup == null || name == null)
+            return;
+        lookup.snapshot.setName(name);
+        resolve(lookup);
+    }
+
+    /** Handles {@link BluetoothDevice#ACTION_UUID}; {@code uuids} is null when SDP failed. */
+    public void onUuids(final String address, final Parcelable[] uuids) {
+        final Lookup lookup = mLookups.get(address);
+        if (lookup == null)
+            return;
+        if (uuids != null) {
+            for (final Parcelable uuid : uuids) {
+                if (AUDIO_SINK_UUID.equals(uuid))
+                    lookup.snapshot.setAudioSink(true);
+            }
+        }
+        if (lookup.snapshot.isAudioSink() || lookup.snapshot.getName() != null) {
+            resolve(lookup);
+        } else {
+            Log.v(TAG, "not an audio sink " + address);
+            remove(lookup);
+        }
+    }
+
+    public void clear() {
+        for (final Lookup lookup : mLookups.values())
+            mHandler.removeCallbacks(lookup);
+        mLookups.clear();
+        mSdpQueue.clear();
+        mSdpInFlight = 0;
+    }
+
+    private void resolve(final Lookup lookup) {
+        remove(lookup);
+        mListener.onResolved(lookup.snapshot);
+    }
+
+    private void remove(final Lookup lookup) {
+        if (mLookups.remove(lookup.snapshot.getAddress()) == null)
+            return;
+        mSdpQueue.remove(lookup);
+        if (lookup.sdpStarted) {
+            mHandler.removeCallbacks(lookup);
+            mSdpInFlight--;
+        }
+        pump();
+    }
+
+    private void pump() {
+        while (mSdpInFlight < MAX_SDP_IN_FLIGHT && !mSdpQueue.isEmpty()) {
+            final Lookup lookup = mSdpQueue.poll();
+            lookup.sdpStarted = true;
+            mSdpInFlight++;
+            mHandler.postDelayed(lookup, SDP_TIMEOUT);
+            if (!lookup.snapshot.getDevice().fetchUuidsWithSdp()) {
+                Log.w(TAG, "fetchUuidsWithSdp refused for " + lookup.snapshot.getAddress());
+                remove(lookup);
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,149 @@
+
+package com.github.android.bluetooth_autopair.bt_module;
+
+import android.bluetooth.BluetoothClass;
+import android.bluetooth.BluetoothDevice;
+import android.content.Intent;
+
+/**
+ * What the UI needs to show about a discovered device, captured from the
+ * discovery broadcasts so that rendering never calls into the Bluetooth service.
+ * Updated in place on {@link BluetoothDevice#ACTION_NAME_CHANGED} and
+ * {@link BluetoothDevice#ACTION_BOND_STATE_CHANGED}; owned by the UI thread.
+ */
+public class DeviceSnapshot {
+
+    public static final int RSSI_UNKNOWN = Short.MIN_VALUE;
+
+    private static final int MAJOR_CLASS_MASK = 0x1F00;
+
+    private static final int MAJOR_CLASS_AUDIO_VIDEO = 0x0400;
+
+    private final BluetoothDevice mDevice;
+
+    private final String mAddress;
+
+    private String mName;
+
+    private int mBondState;
+
+    private int mRssi = RSSI_UNKNOWN;
+
+    private String mRssiText = "";
+
+    private int mDeviceClass = 0;
+
+    private boolean mAudioSink = false;
+
+    /** False for a row restored from {@link DiscoveryCache} until an inquiry hears the device again. */
+    private boolean mConfirmed = true;
+
+    public DeviceSnapshot(final BluetoothDevice device, final String name, final int bondState) {
+        mDevice = device;
+        mAddress = device.getAddress();
+        mName = name;
+        mBondState = bondState;
+    }
+
+    /**
+     * Builds a snapshot from an {@link BluetoothDevice#ACTION_FOUND} intent.
+     * Costs one {@code getBondState()} call, plus {@code getName()} when the
+     * inquiry result carried no name.
+     */
+    public static DeviceSnapshot fromFoundIntent(final BluetoothDevice device, final Intent intent) {
+        String name = intent.getStringExtra(BluetoothDevice.EXTRA_NAME);
+        if (name == null)
+            name = device.getName();
+        final DeviceSnapshot snapshot = new DeviceSnapshot(device, name, device.getBondState());
+        snapshot.updateFromFoundIntent(intent);
+        return snapshot;
+    }
+
+    /** Refreshes RSSI and class from a repeated inquiry result. */
+    public void updateFromFoundIntent(final Intent intent) {
+        mConfirmed = true;
+        setRssi(getRssi(intent));
+        final BluetoothClass bluetoothClass = intent.getParcelableExtra(BluetoothDevice.EXTRA_CLASS);
+        if (bluetoothClass != null)
+            mDeviceClass = bluetoothClass.getDeviceClass();
+    }
+
+    /** RSSI carried by an {@link BluetoothDevice#ACTION_FOUND} intent, or {@link #RSSI_UNKNOWN}. */
+    public static int getRssi(final Intent intent) {
+        return intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, (short) RSSI_UNKNOWN);
+    }
+
+    public BluetoothDevice getDevice() {
+        return mDevice;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public void setName(final String name) {
+        mName = name;
+    }
+
+    public int getBondState() {
+        return mBondState;
+    }
+
+    public void setBondState(final int bondState) {
+        mBondState = bondState;
+    }
+
+    public int getRssi() {
+        return mRssi;
+    }
+
+    /** Pre-formatted RSSI, so binding a row does not build a string. */
+    public String getRssiText() {
+        return mRssiText;
+    }
+
+    public void setRssi(final int rssi) {
+        if (rssi == mRssi)
+            return;
+        mRssi = rssi;
+        mRssiText = rssi == RSSI_UNKNOWN ? "" : rssi + " dBm";
+    }
+
+    public int getDeviceClass() {
+        return mDeviceClass;
+    }
+
+    void setDeviceClass(final int deviceClass) {
+        mDeviceClass = deviceClass;
+    }
+
+    public boolean isConfirmed() {
+        return mConfirmed;
+    }
+
+    void setConfirmed(final boolean confirmed) {
+        mConfirmed = confirmed;
+    }
+
+    /** True once SDP has reported the A2DP sink service. */
+    public boolean isAudioSink() {
+        return mAudioSink;
+    }
+
+    public void setAudioSink(final boolean audioSink) {
+        mAudioSink = audioSink;
+    }
+
+    public int getMajorDeviceClass() {
+        return mDeviceClass & MAJOR_CLASS_MASK;
+    }
+
+    /** Audio/video class of device, or an A2DP sink record from SDP. */
+    public boolean isAudioDevice() {
+        return mAudioSink || getMajorDeviceClass() == MAJOR_CLASS_AUDIO_VIDEO;
+    }
+}
@@ -0,0 +1,112 @@
+
+package com.github.android.bluetooth_autopair.bt_module;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Devices seen by recent inquiries, kept for the life of the process so a
+ * device list can show them before its own inquiry has heard anything.
+ * Entries expire {@link #TTL} ms after they were last heard and the least
+ * recently heard go first once there are more than {@link #MAX_ENTRIES}.
+ * <p>
+ * Thread safe; in practice only touched from the UI thread.
+ */
+public class DiscoveryCache {
+
+    public static final long TTL = 5 * 60 * 1000;
+
+    public static final int MAX_ENTRIES = 64;
+
+    private static final DiscoveryCache sInstance = new DiscoveryCache();
+
+    public static DiscoveryCache getInstance() {
+        return sInstance;
+    }
+
+    private static final class Entry {
+
+        final BluetoothDevice device;
+
+        String name;
+
+        int bondState;
+
+        int rssi;
+
+        int deviceClass;
+
+        boolean audioSink;
+
+        long lastSeen;
+
+        Entry(final BluetoothDevice device) {
+            this.device = device;
+        }
+    }
+
+    /** Access ordered, so eviction drops the least recently heard device. */
+    private final Map<String, Entry> mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private DiscoveryCache() {
+    }
+
+    /** Records {@code snapshot} as heard now; updates the entry in place when there is one. */
+    public synchronized void put(final DeviceSnapshot snapshot) {
+        Entry entry = mEntries.get(snapshot.getAddress());
+        if (entry == null) {
+            entry = new Entry(snapshot.getDevice());
+            mEntries.put(snapshot.getAddress(), entry);
+        }
+        entry.name = snapshot.getName();
+        entry.bondState = snapshot.getBondState();
+        entry.rssi = snapshot.getRssi();
+        entry.deviceClass = snapshot.getDeviceClass();
+        entry.audioSink = snapshot.isAudioSink();
+        entry.lastSeen = SystemClock.elapsedRealtime();
+    }
+
+    public synchronized void remove(final String address) {
+        mEntries.remove(address);
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+    }
+
+    /**
+     * Drops expired entries and returns the rest as unconfirmed snapshots,
+     * most recently heard first.
+     */
+    public synchronized List<DeviceSnapshot> snapshot() {
+        final long now = SystemClock.elapsedRealtime();
+        final List<DeviceSnapshot> snapshots = new ArrayList<DeviceSnapshot>(mEntries.size());
+        final Iterator<Entry> it = mEntries.values().iterator();
+        while (it.hasNext()) {
+            final Entry entry = it.next();
+            if (now - entry.lastSeen > TTL) {
+                it.remove();
+                continue;
+            }
+            final DeviceSnapshot snapshot = new DeviceSnapshot(entry.device, entry.name, entry.bondState);
+            snapshot.setRssi(entry.rssi);
+            snapshot.setDeviceClass(entry.deviceClass);
+            snapshot.setAudioSink(entry.audioSink);
+            snapshot.setConfirmed(false);
+            snapshots.add(0, snapshot);
+        }
+        return snapshots;
+    }
+}
@@ -0,0 +1,70 @@
+
+package com.github.android.bluetooth_autopair.bt_module;
+
+import android.content.Intent;
+
+/**
+ * Describes the device a targeted discovery is looking for: an exact address,
+ * a name prefix and/or a major device class such as
+ * {@link android.bluetooth.BluetoothClass.Device.Major#AUDIO_VIDEO}. Every
+ * criterion that is set must match. Travels as intent extras.
+ */
+public class DiscoveryFilter {
+
+    public static final String EXTRA_TARGET_ADDRESS = "com.github.android.bluetooth_autopair.TARGET_ADDRESS";
+
+    public static final String EXTRA_TARGET_NAME_PREFIX = "com.github.android.bluetooth_autopair.TARGET_NAME_PREFIX";
+
+    public static final String EXTRA_TARGET_MAJOR_CLASS = "com.github.android.bluetooth_autopair.TARGET_MAJOR_CLASS";
+
+    public static final int ANY_CLASS = -1;
+
+    private final String mAddress;
+
+    private final String mNamePrefix;
+
+    private final int mMajorDeviceClass;
+
+    public DiscoveryFilter(final String address, final String namePrefix, final int majorDeviceClass) {
+        mAddress = address;
+        mNamePrefix = namePrefix;
+        mMajorDeviceClass = majorDeviceClass;
+    }
+
+    /** @return the filter carried by {@code intent}, or null when it asks for no target. */
+    public static DiscoveryFilter fromIntent(final Intent intent) {
+        if (intent == null)
+            return null;
+        final String address = intent.getStringExtra(EXTRA_TARGET_ADDRESS);
+        final String namePrefix = intent.getStringExtra(EXTRA_TARGET_NAME_PREFIX);
+        final int majorDeviceClass = intent.getIntExtra(EXTRA_TARGET_MAJOR_CLASS, ANY_CLASS);
+        if (address == null && namePrefix == null && majorDeviceClass == ANY_CLASS)
+            return null;
+        return new DiscoveryFilter(address, namePrefix, majorDeviceClass);
+    }
+
+    public void writeToIntent(final Intent intent) {
+        if (mAddress != null)
+            intent.putExtra(EXTRA_TARGET_ADDRESS, mAddress);
+        if (mNamePrefix != null)
+            intent.putExtra(EXTRA_TARGET_NAME_PREFIX, mNamePrefix);
+        if (mMajorDeviceClass != ANY_CLASS)
+            intent.putExtra(EXTRA_TARGET_MAJOR_CLASS, mMajorDeviceClass);
+    }
+
+    public boolean matches(final DeviceSnapshot device) {
+        if (mAddress != null && !mAddress.equalsIgnoreCase(device.getAddress()))
+            return false;
+        if (mNamePrefix != null && (device.getName() == null || !device.getName().startsWith(mNamePrefix)))
+            return false;
+        if (mMajorDeviceClass != ANY_CLASS && device.getMajorDeviceClass() != mMajorDeviceClass)
+            return false;
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "DiscoveryFilter{address=" + mAddress + ", namePrefix=" + mNamePrefix
+                + ", majorClass=" + mMajorDeviceClass + "}";
+    }
+}
@@ -0,0 +1,277 @@
+
+package com.github.android.bluetooth_autopair.bt_module;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Append-only binary trace of everything that crosses {@link BtStack}: each
+ * call with its arguments and return value, each callback, and the start and
+ * end of every connect session. Records go into a memory-mapped file used as
+ * a ring, so the trace keeps the most recent {@link #getCapacity()} records
+ * and recording is a handful of absolute puts with no allocation.
+ * <p>
+ * File layout: a 32 byte header (int magic, int version, int capacity, int
+ * unused, long next sequence number, long unused) followed by
+ * {@code capacity} fixed 32 byte records. A record is a long sequence number
+ * (from 1, 0 marks an empty slot), a long time from the recorder's clock, a
+ * long packing the 48 bit MAC address with the record type in the top byte,
+ * and two ints whose meaning depends on the type.
+ */
+public class FlightRecorder {
+
+    private static final String TAG = FlightRecorder.class.getSimpleName();
+
+    private static final int MAGIC = 0x42544652;
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 32;
+
+    private static final int RECORD_SIZE = 32;
+
+    private static final int HEADER_NEXT_SEQUENCE = 16;
+
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    // Callbacks; arg1 is the new state, arg2 the previous one.
+    public static final int CB_A2DP_SERVICE_CONNECTED = 1;
+
+    public static final int CB_A2DP_SERVICE_DISCONNECTED = 2;
+
+    public static final int CB_BOND_STATE_CHANGED = 3;
+
+    public static final int CB_A2DP_STATE_CHANGED = 4;
+
+    public static final int CB_HEADSET_SERVICE_CONNECTED = 5;
+
+    public static final int CB_HEADSET_STATE_CHANGED = 6;
+
+    /** arg1 is 1 for connected. */
+    public static final int CB_ACL_STATE_CHANGED = 7;
+
+    public static final int CB_HEADSET_SERVICE_DISCONNECTED = 8;
+
+    // Calls; arg1 is the return value (booleans as 0/1), arg2 an argument if any.
+    public static final int OP_OPEN = 16;
+
+    public static final int OP_CLOSE = 17;
+
+    /** Followed by arg1 {@link #OP_BONDED_ADDRESS} records. */
+    public static final int OP_GET_BONDED_ADDRESSES = 18;
+
+    public static final int OP_BONDED_ADDRESS = 19;
+
+    public static final int OP_GET_BOND_STATE = 20;
+
+    public static final int OP_CREATE_BOND = 21;
+
+    /** arg1 is 1 when a target was set, 0 when cleared. */
+    public static final int OP_SET_PAIRING_TARGET = 22;
+
+    public static final int OP_START_DISCOVERY = 23;
+
+    public static final int OP_CANCEL_DISCOVERY = 24;
+
+    public static final int OP_CONNECT_A2DP = 25;
+
+    public static final int OP_DISCONNECT_A2DP = 26;
+
+    /** arg2 is the requested priority. */
+    public static final int OP_SET_A2DP_PRIORITY = 27;
+
+    public static final int OP_GET_A2DP_STATE = 28;
+
+    public static final int OP_CONNECT_HEADSET = 29;
+
+    public static final int OP_DISCONNECT_HEADSET = 30;
+
+    public static final int OP_GET_HEADSET_STATE = 31;
+
+    public static final int OP_REMOVE_BOND = 32;
+
+    public static final int OP_CANCEL_BOND = 33;
+
+    // AutoConnect sessions.
+    public static final int EV_SESSION_START = 48;
+
+    /** arg1 is 1 for success, arg2 the session duration in ms. */
+    public static final int EV_SESSION_FINISH = 49;
+
+    /** A {@link AutoConnect#prepare} as the worker received it. */
+    public static final int EV_PREPARE = 50;
+
+    public static final class Record {
+
+        public final long sequence;
+
+        public final long time;
+
+        public final int type;
+
+        public final String address;
+
+        public final int arg1;
+
+        public final int arg2;
+
+        Record(final long sequence, final long time, final int type, final String address,
+                final int arg1, final int arg2) {
+            this.sequence = sequence;
+            this.time = time;
+            this.type = type;
+            this.address = address;
+            this.arg1 = arg1;
+            this.arg2 = arg2;
+        }
+
+        @Override
+        public String toString() {
+            return sequence + " " + time + " " + type + " " + address + " " + arg1 + " " + arg2;
+        }
+    }
+
+    private final RandomAccessFile mFile;
+
+    private final MappedByteBuffer mBuffer;
+
+    private final int mCapacity;
+
+    private long mNextSequence;
+
+    private final Scheduler mClock;
+
+    private boolean mClosed = false;
+
+    /**
+     * Maps {@code file}, creating it with room for {@code capacity} records.
+     * An existing trace of the same capacity is appended to, anything else is
+     * started over. Records are timed with {@code clock}, the scheduler the
+     * engine runs on, so a trace taken on a {@link VirtualScheduler} is in
+     * virtual time.
+     */
+    public FlightRecorder(final File file, final int capacity, final Scheduler clock) throws IOException {
+        mCapacity = capacity;
+        mClock = clock;
+        mFile = new RandomAccessFile(file, "rw");
+        final long size = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+        mFile.setLength(size);
+        mBuffer = mFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        if (mBuffer.getInt(0) == MAGIC && mBuffer.getInt(4) == VERSION && mBuffer.getInt(8) == capacity) {
+            mNextSequence = mBuffer.getLong(HEADER_NEXT_SEQUENCE);
+        } else {
+            for (int i = 0; i < capacity; i++)
+                mBuffer.putLong(HEADER_SIZE + i * RECORD_SIZE, 0);
+            mBuffer.putInt(0, MAGIC);
+            mBuffer.putInt(4, VERSION);
+            mBuffer.putInt(8, capacity);
+            mNextSequence = 1;
+            mBuffer.putLong(HEADER_NEXT_SEQUENCE, mNextSequence);
+        }
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    public void record(final int type, final String address, final int arg1, final int arg2) {
+        record(mClock.now(), type, address, arg1, arg2);
+    }
+
+    public void record(final int type, final String address, final boolean result) {
+        record(type, address, result ? 1 : 0, 0);
+    }
+
+    public synchronized void record(final long time, final int type, final String address,
+            final int arg1, final int arg2) {
+        if (mClosed)
+            return;
+        final long sequence = mNextSequence++;
+        final int offset = HEADER_SIZE + (int) ((sequence - 1) % mCapacity) * RECORD_SIZE;
+        // sequence last, so a torn slot never looks valid
+        mBuffer.putLong(offset, 0);
+        mBuffer.putLong(offset + 8, time);
+        mBuffer.putLong(offset + 16, ((long) type << 56) | packAddress(address));
+        mBuffer.putInt(offset + 24, arg1);
+        mBuffer.putInt(offset + 28, arg2);
+        mBuffer.putLong(offset, sequence);
+        mBuffer.putLong(HEADER_NEXT_SEQUENCE, mNextSequence);
+    }
+
+    /** Flushes the mapping to disk and stops recording. */
+    public synchronized void close() {
+        if (mClosed)
+            return;
+        mClosed = true;
+        mBuffer.force();
+        try {
+            mFile.close();
+        } catch (final IOException e) {
+            Log.w(TAG, "close failed", e);
+        }
+    }
+
+    /** MAC address to its 48 bit value without allocating; 0 for null. */
+    static long packAddress(final String address) {
+        if (address == null)
+            return 0;
+        long value = 0;
+        for (int i = 0; i < address.length(); i++) {
+            final int digit = Character.digit(address.charAt(i), 16);
+            if (digit >= 0)
+                value = (value << 4) | digit;
+        }
+        return value & 0xFFFFFFFFFFFFL;
+    }
+
+    static String unpackAddress(final long value) {
+        if (value == 0)
+            return null;
+        return String.format(Locale.US, "%02X:%02X:%02X:%02X:%02X:%02X",
+                (value >> 40) & 0xFF, (value >> 32) & 0xFF, (value >> 24) & 0xFF,
+                (value >> 16) & 0xFF, (value >> 8) & 0xFF, value & 0xFF);
+    }
+
+    /** Reads a trace file, oldest record first. Plain Java, for desktop tools. */
+    public static List<Record> read(final File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final ByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+                throw new IOException("not a flight recorder trace: " + file);
+            final int capacity = buffer.getInt(8);
+            final long nextSequence = buffer.getLong(HEADER_NEXT_SEQUENCE);
+            final List<Record> records = new ArrayList<Record>(capacity);
+            for (int i = 0; i < capacity; i++) {
+                final int offset = HEADER_SIZE + i * RECORD_SIZE;
+                final long sequence = buffer.getLong(offset);
+                if (sequence <= 0 || sequence >= nextSequence)
+                    continue;
+                final long packed = buffer.getLong(offset + 16);
+                records.add(new Record(sequence, buffer.getLong(offset + 8), (int) (packed >>> 56),
+                        unpackAddress(packed & 0xFFFFFFFFFFFFL), buffer.getInt(offset + 24),
+                        buffer.getInt(offset + 28)));
+            }
+            Collections.sort(records, new Comparator<Record>() {
+                @Override
+                public int compare(final Record lhs, final Record rhs) {
+                    return lhs.sequence < rhs.sequence ? -1 : (lhs.sequence == rhs.sequence ? 0 : 1);
+                }
+            });
+            return records;
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+
+package com.github.android.bluetooth_autopair.bt_module;
+
+import android.bluetooth.BluetoothA2dp;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothHeadset;
+import android.util.Log;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Hidden framework methods AutoConnect relies on. Each method is looked up
+ * once when this object is created; a missing method is remembered as null
+ * and the matching call then returns false without touching reflection again.
+ */
+public class HiddenBluetoothApi {
+
+    private static final String TAG = HiddenBluetoothApi.class.getSimpleName();
+
+    private final Method mCreateBond;
+
+    private final Method mRemoveBond;
+
+    private final Method mSetPin;
+
+    private final Method mSetPasskey;
+
+    private final Method mSetPairingConfirmation;
+
+    private final Method mCancelPairingUserInput;
+
+    private final Method mCancelBondProcess;
+
+    private final Method mA2dpConnect;
+
+    private final Method mA2dpDisconnect;
+
+    private final Method mA2dpSetPriority;
+
+    private final Method mHeadsetConnect;
+
+    private final Method mHeadsetDisconnect;
+
+    public HiddenBluetoothApi() {
+        mCreateBond = findMethod(BluetoothDevice.class, "createBond");
+        mRemoveBond = findMethod(BluetoothDevice.class, "removeBond");
+        mSetPin = findMethod(BluetoothDevice.class, "setPin", byte[].class);
+        mSetPasskey = findMethod(BluetoothDevice.class, "setPasskey", int.class);
+        mSetPairingConfirmation = findMethod(BluetoothDevice.class, "setPairingConfirmation", boolean.class);
+        mCancelPairingUserInput = findMethod(BluetoothDevice.class, "cancelPairingUserInput");
+        mCancelBondProcess = findMethod(BluetoothDevice.class, "cancelBondProcess");
+        mA2dpConnect = findMethod(BluetoothA2dp.class, "connect", BluetoothDevice.class);
+        mA2dpDisconnect = findMethod(BluetoothA2dp.class, "disconnect", BluetoothDevice.class);
+        mA2dpSetPriority = findMethod(BluetoothA2dp.class, "setPriority", BluetoothDevice.class, int.class);
+        mHeadsetConnect = findMethod(BluetoothHeadset.class, "connect", BluetoothDevice.class);
+        mHeadsetDisconnect = findMethod(BluetoothHeadset.class, "disconnect", BluetoothDevice.class);
+    }
+
+    private static Method findMethod(final Class<?> invokedClass, final String name, final Class<?>... parameterTypes) {
+        try {
+            return invokedClass.getMethod(name, parameterTypes);
+        } catch (final NoSuchMethodException e) {
+            Log.w(TAG, invokedClass.getSimpleName() + "." + name + " not available");
+            return null;
+        }
+    }
+
+    private static boolean invokeBoolean(final Method method, final Object receiver, final Object... args) {
+        if (method == null || receiver == null)
+            return false;
+        try {
+            final Object returnValue = method.invoke(receiver, args);
+            return returnValue instanceof Boolean && ((Boolean) returnValue).booleanValue();
+        } catch (final IllegalAccessException e) {
+            e.printStackTrace();
+        } catch (final IllegalArgumentException e) {
+            e.printStackTrace();
+        } catch (final InvocationTargetException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    /** {@code BluetoothDevice.createBond()}, public only from API 19. */
+    public boolean createBond(final BluetoothDevice device) {
+        return invokeBoolean(mCreateBond, device);
+    }
+
+    /** {@code BluetoothDevice.setPin(byte[])}, public only from API 19. */
+    public boolean setPin(final BluetoothDevice device, final byte[] pin) {
+        return invokeBoolean(mSetPin, device, (Object) pin);
+    }
+
+    public boolean setPasskey(final BluetoothDevice device, final int passkey) {
+        return invokeBoolean(mSetPasskey, device, passkey);
+    }
+
+    /** {@code BluetoothDevice.setPairingConfirmation(boolean)}, public only from API 19. */
+    public boolean setPairingConfirmation(final BluetoothDevice device, final boolean confirm) {
+        return invokeBoolean(mSetPairingConfirmation, device, confirm);
+    }
+
+    /** {@code BluetoothDevice.cancelPairingUserInput()}: dismisses an open pairing request. */
+    public boolean cancelPairingUserInput(final BluetoothDevice device) {
+        return invokeBoolean(mCancelPairingUserInput, device);
+    }
+
+    /** {@code BluetoothDevice.removeBond()}: unpairs the device. */
+    public boolean removeBond(final BluetoothDevice device) {
+        return invokeBoolean(mRemoveBond, device);
+    }
+
+    /** {@code BluetoothDevice.cancelBondProcess()}: ends the bond with BOND_NONE. */
+    public boolean cancelBondProcess(final BluetoothDevice device) {
+        return invokeBoolean(mCancelBondProcess, device);
+    }
+
+    /** {@code BluetoothA2dp.connect(BluetoothDevice)}, used below API 17. */
+    public boolean connect(final BluetoothA2dp a2dp, final BluetoothDevice device) {
+        return invokeBoolean(mA2dpConnect, a2dp, device);
+    }
+
+    public boolean disconnect(final BluetoothA2dp a2dp, final BluetoothDevice device) {
+        return invokeBoolean(mA2dpDisconnect, a2dp, device);
+    }
+
+    public boolean setPriority(final BluetoothA2dp a2dp, final BluetoothDevice device, final int priority) {
+        return invokeBoolean(mA2dpSetPriority, a2dp, device, priority);
+    }
+
+    /** {@code BluetoothHeadset.connect(BluetoothDevice)}, hidden on every API level we run on. */
+    public boolean connect(final BluetoothHeadset headset, final BluetoothDevice device) {
+        return invokeBoolean(mHeadsetConnect, headset, device);
+    }
+
+    public boolean disconnect(final BluetoothHeadset headset, final BluetoothDevice device) {
+        return invokeBoolean(mHeadsetDisconnect, headset, device);
+    }
+}
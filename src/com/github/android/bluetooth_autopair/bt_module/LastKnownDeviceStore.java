@@ -0,0 +1,134 @@
+
+package com.github.android.bluetooth_autopair.bt_module;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Devices that connected successfully, most recent first, kept in a small
+ * binary file so that a restart can reconnect without running discovery.
+ * <p>
+ * File layout: int version, int count, then per device a UTF address, a long
+ * wall-clock time of the last success and an int connect latency in ms.
+ */
+public class LastKnownDeviceStore {
+
+    private static final String TAG = LastKnownDeviceStore.class.getSimpleName();
+
+    private static final int VERSION = 1;
+
+    private static final int MAX_ENTRIES = 8;
+
+    public static final class Entry {
+
+        public final String address;
+
+        public final long lastSuccessTime;
+
+        public final int connectLatencyMs;
+
+        Entry(final String address, final long lastSuccessTime, final int connectLatencyMs) {
+            this.address = address;
+            this.lastSuccessTime = lastSuccessTime;
+            this.connectLatencyMs = connectLatencyMs;
+        }
+    }
+
+    private final StoreFile mStoreFile;
+
+    private final List<Entry> mEntries = new ArrayList<Entry>();
+
+    private boolean mLoaded = false;
+
+    public LastKnownDeviceStore(final File file) {
+        mStoreFile = new StoreFile(file);
+    }
+
+    public synchronized void load() {
+        mLoaded = true;
+        mEntries.clear();
+        if (!mStoreFile.getFile().exists())
+            return;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mStoreFile.getFile())));
+            if (in.readInt() != VERSION)
+                return;
+            final int count = Math.min(in.readInt(), MAX_ENTRIES);
+            for (int i = 0; i < count; i++)
+                mEntries.add(new Entry(in.readUTF(), in.readLong(), in.readInt()));
+        } catch (final IOException e) {
+            Log.w(TAG, "load failed", e);
+            mEntries.clear();
+        } finally {
+            StoreFile.closeQuietly(in);
+        }
+    }
+
+    public synchronized boolean isLoaded() {
+        return mLoaded;
+    }
+
+    /** @return the most recently connected device, or null when there is none. */
+    public synchronized Entry getMostRecent() {
+        return mEntries.isEmpty() ? null : mEntries.get(0);
+    }
+
+    public synchronized List<Entry> getEntries() {
+        return Collections.unmodifiableList(new ArrayList<Entry>(mEntries));
+    }
+
+    public synchronized boolean contains(final String address) {
+        return indexOf(address) >= 0;
+    }
+
+    /** Moves {@code address} to the front and writes the file. */
+    public synchronized void recordSuccess(final String address, final int connectLatencyMs) {
+        final int index = indexOf(address);
+        if (index >= 0)
+            mEntries.remove(index);
+        mEntries.add(0, new Entry(address, System.currentTimeMillis(), connectLatencyMs));
+        while (mEntries.size() > MAX_ENTRIES)
+            mEntries.remove(mEntries.size() - 1);
+        save();
+    }
+
+    private int indexOf(final String address) {
+        for (int i = 0; i < mEntries.size(); i++) {
+            if (mEntries.get(i).address.equals(address))
+                return i;
+        }
+        return -1;
+    }
+
+    private void save() {
+        FileOutputStream file = null;
+        try {
+            file = mStoreFile.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+            out.writeInt(VERSION);
+            out.writeInt(mEntries.size());
+            for (final Entry entry : mEntries) {
+                out.writeUTF(entry.address);
+                out.writeLong(entry.lastSuccessTime);
+                out.writeInt(entry.connectLatencyMs);
+            }
+            out.flush();
+            mStoreFile.finishWrite(file);
+        } catch (final IOException e) {
+            Log.w(TAG, "save failed", e);
+            mStoreFile.failWrite(file);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.github.android.bluetooth_autopair.bt_module;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.SystemClock;
+
+/**
+ * {@link Scheduler} on a dedicated {@link HandlerThread}, timed with
+ * {@link SystemClock#elapsedRealtime()}.
+ */
+public class LooperScheduler implements Scheduler {
+
+    private final HandlerThread mThread;
+
+    private final Handler mHandler;
+
+    private volatile Target mTarget;
+
+    public LooperScheduler(final String name) {
+        mThread = new HandlerThread(name);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper()) {
+
+            @Override
+            public void handleMessage(final Message msg) {
+                final Target target = mTarget;
+                if (target != null)
+                    target.handleMessage(msg.what, msg.arg1, msg.obj);
+            }
+        };
+    }
+
+    @Override
+    public long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    @Override
+    public void setTarget(final Target target) {
+        mTarget = target;
+    }
+
+    @Override
+    public void sendMessage(final int what, final int arg1, final Object obj, final long delayMs) {
+        mHandler.sendMessageDelayed(mHandler.obtainMessage(what, arg1, 0, obj), delayMs);
+    }
+
+    @Override
+    public void removeMessages(final int what, final Object obj) {
+        mHandler.removeMessages(what, obj);
+    }
+
+    @Override
+    public void post(final Runnable runnable, final long delayMs) {
+        mHandler.postDelayed(runnable, delayMs);
+    }
+
+    @Override
+    public void removeCallbacks(final Runnable runnable) {
+        mHandler.removeCallbacks(runnable);
+    }
+
+    @Override
+    public void removeAll() {
+        mHandler.removeCallbacksAndMessages(null);
+    }
+
+    @Override
+    public void quit() {
+        mThread.getLooper().quit();
+    }
+}
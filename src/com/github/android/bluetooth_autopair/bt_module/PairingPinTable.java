@@ -0,0 +1,49 @@
+
+package com.github.android.bluetooth_autopair.bt_module;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * PINs to answer legacy pairing requests with, per device. A device without
+ * an entry gets the common defaults; a device with one gets its own PIN first
+ * and the defaults after it, one per bond attempt.
+ */
+public class PairingPinTable {
+
+    public static final List<String> DEFAULT_PINS = Collections.unmodifiableList(
+            Arrays.asList("0000", "1234"));
+
+    private final Map<String, String> mPins = new HashMap<String, String>();
+
+    public synchronized void put(final String address, final String pin) {
+        mPins.put(address, pin);
+    }
+
+    public synchronized void remove(final String address) {
+        mPins.remove(address);
+    }
+
+    public synchronized List<String> getPins(final String address) {
+        final String pin = mPins.get(address);
+        if (pin == null)
+            return DEFAULT_PINS;
+        final List<String> pins = new ArrayList<String>(DEFAULT_PINS.size() + 1);
+        pins.add(pin);
+        for (final String fallback : DEFAULT_PINS) {
+            if (!fallback.equals(pin))
+                pins.add(fallback);
+        }
+        return pins;
+    }
+
+    /** PIN for the given 1-based bond attempt; the last one repeats. */
+    public String getPin(final String address, final int attempt) {
+        final List<String> pins = getPins(address);
+        return pins.get(Math.max(0, Math.min(attempt - 1, pins.size() - 1)));
+    }
+}
@@ -0,0 +1,162 @@
+
+package com.github.android.bluetooth_autopair.bt_module;
+
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
+import android.util.Log;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Answers the pairing request of the device currently being bonded, so no
+ * system dialog waits for a tap. SSP confirmation and consent are accepted,
+ * legacy PIN and passkey requests get the PIN set with {@link #setTarget}.
+ * The receiver runs ahead of Settings and aborts the ordered broadcast once
+ * it has answered. A PIN or passkey request with no usable PIN is cancelled
+ * instead, so the bond ends with BOND_NONE at once and the next PIN can be
+ * tried. An answer the platform refuses (on API 19+ confirmation needs
+ * BLUETOOTH_PRIVILEGED) and the display variants are left to the system
+ * dialog, so the user can still pair by hand. Requests for any other device
+ * are left alone.
+ */
+public class PairingRequestHandler {
+
+    private static final String TAG = PairingRequestHandler.class.getSimpleName();
+
+    /** {@code BluetoothDevice.ACTION_PAIRING_REQUEST}, public only from API 19. */
+    public static final String ACTION_PAIRING_REQUEST = "android.bluetooth.device.action.PAIRING_REQUEST";
+
+    private static final String EXTRA_PAIRING_VARIANT = "android.bluetooth.device.extra.PAIRING_VARIANT";
+
+    private static final int PAIRING_VARIANT_PIN = 0;
+
+    private static final int PAIRING_VARIANT_PASSKEY = 1;
+
+    private static final int PAIRING_VARIANT_PASSKEY_CONFIRMATION = 2;
+
+    private static final int PAIRING_VARIANT_CONSENT = 3;
+
+    private static final int ANSWERED = 0;
+
+    /** Refused by the platform or not ours to answer; the user can still answer it. */
+    private static final int LEFT_TO_USER = 1;
+
+    /** No PIN we have fits; nobody will answer it. */
+    private static final int UNANSWERABLE = 2;
+
+    private static final class Target {
+
+        final String address;
+
+        final String pin;
+
+        Target(final String address, final String pin) {
+            this.address = address;
+            this.pin = pin;
+        }
+    }
+
+    private final HiddenBluetoothApi mHiddenApi;
+
+    /** Set from the engine thread, read on the receiver's thread. */
+    private volatile Target mTarget = null;
+
+    private final RegisteredReceiver mPairingRequestReceiver;
+
+    public PairingRequestHandler(final Context context, final HiddenBluetoothApi hiddenApi) {
+        mHiddenApi = hiddenApi;
+        mPairingRequestReceiver = new RegisteredReceiver(context) {
+
+            @Override
+            protected IntentFilter createFilter() {
+                final IntentFilter filter = new IntentFilter(ACTION_PAIRING_REQUEST);
+                filter.setPriority(IntentFilter.SYSTEM_HIGH_PRIORITY - 1);
+                return filter;
+            }
+
+            @Override
+            public void onReceive(final Context context, final Intent intent) {
+                if (!ACTION_PAIRING_REQUEST.equals(intent.getAction()))
+                    return;
+                final BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+                final Target target = mTarget;
+                if (device == null || target == null || !target.address.equals(device.getAddress()))
+                    return;
+                final int variant = intent.getIntExtra(EXTRA_PAIRING_VARIANT, BluetoothDevice.ERROR);
+                switch (answer(device, variant, target.pin)) {
+                    case ANSWERED:
+                        Log.v(TAG, "pairing request answered, variant = " + variant);
+                        if (isOrderedBroadcast())
+                            abortBroadcast();
+                        break;
+                    case UNANSWERABLE:
+                        mTarget = null;
+                        final boolean cancelled = mHiddenApi.cancelPairingUserInput(device)
+                                | mHiddenApi.cancelBondProcess(device);
+                        Log.w(TAG, "no PIN for pairing request, variant = " + variant + ", cancelled = " + cancelled);
+                        if (isOrderedBroadcast())
+                            abortBroadcast();
+                        break;
+                    default:
+                        // the broadcast goes on to Settings, which shows the dialog
+                        mTarget = null;
+                        Log.w(TAG, "pairing request left to the user, variant = " + variant);
+                        break;
+                }
+            }
+        };
+    }
+
+    /** Answers requests from {@code address} with {@code pin}; null address stops answering. */
+    public void setTarget(final String address, final String pin) {
+        mTarget = address != null ? new Target(address, pin) : null;
+    }
+
+    private static int result(final boolean accepted) {
+        return accepted ? ANSWERED : LEFT_TO_USER;
+    }
+
+    /** @return {@link #ANSWERED}, {@link #LEFT_TO_USER} or {@link #UNANSWERABLE} */
+    private int answer(final BluetoothDevice device, final int variant, final String pin) {
+        switch (variant) {
+            case PAIRING_VARIANT_PASSKEY_CONFIRMATION:
+            case PAIRING_VARIANT_CONSENT:
+                return result(mHiddenApi.setPairingConfirmation(device, true));
+            case PAIRING_VARIANT_PIN:
+                if (pin == null)
+                    return UNANSWERABLE;
+                try {
+                    return result(mHiddenApi.setPin(device, pin.getBytes("UTF-8")));
+                } catch (final UnsupportedEncodingException e) {
+                    e.printStackTrace();
+                    return UNANSWERABLE;
+                }
+            case PAIRING_VARIANT_PASSKEY:
+                try {
+                    return result(mHiddenApi.setPasskey(device, Integer.parseInt(pin)));
+                } catch (final NumberFormatException e) {
+                    Log.w(TAG, "PIN " + pin + " is not a passkey");
+                    return UNANSWERABLE;
+                }
+            default:
+                // display variants need the remote side to type; the dialog shows the key
+                return LEFT_TO_USER;
+        }
+    }
+
+    /**
+     * Starts listening. Requests are handled on the looper of {@code handler},
+     * or on the main thread when it is null.
+     */
+    public void start(final Handler handler) {
+        mPairingRequestReceiver.start(handler);
+    }
+
+    public void stop() {
+        mPairingRequestReceiver.stop();
+        mTarget = null;
+    }
+}
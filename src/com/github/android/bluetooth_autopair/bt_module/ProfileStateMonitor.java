@@ -0,0 +1,62 @@
+
+package com.github.android.bluetooth_autopair.bt_module;
+
+import android.bluetooth.BluetoothA2dp;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothHeadset;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.util.Log;
+
+/**
+ * Forwards the A2DP and headset {@code ACTION_CONNECTION_STATE_CHANGED}
+ * broadcasts to a {@link Listener}. A true return from a profile connect call
+ * only means the request was accepted; this is where the real
+ * {@code STATE_CONNECTED} shows up.
+ */
+public class ProfileStateMonitor extends RegisteredReceiver {
+
+    private static final String TAG = ProfileStateMonitor.class.getSimpleName();
+
+    public interface Listener {
+
+        /** @param profile {@link BluetoothProfile#A2DP} or {@link BluetoothProfile#HEADSET} */
+        void onProfileStateChanged(int profile, BluetoothDevice device, int state, int previousState);
+    }
+
+    private final Listener mListener;
+
+    public ProfileStateMonitor(final Context context, final Listener listener) {
+        super(context);
+        mListener = listener;
+    }
+
+    @Override
+    protected IntentFilter createFilter() {
+        final IntentFilter filter = new IntentFilter(BluetoothA2dp.ACTION_CONNECTION_STATE_CHANGED);
+        filter.addAction(BluetoothHeadset.ACTION_CONNECTION_STATE_CHANGED);
+        return filter;
+    }
+
+    @Override
+    public void onReceive(final Context context, final Intent intent) {
+        final String action = intent.getAction();
+        final int profile;
+        if (BluetoothA2dp.ACTION_CONNECTION_STATE_CHANGED.equals(action)) {
+            profile = BluetoothProfile.A2DP;
+        } else if (BluetoothHeadset.ACTION_CONNECTION_STATE_CHANGED.equals(action)) {
+            profile = BluetoothProfile.HEADSET;
+        } else {
+            return;
+        }
+        final BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+        if (device == null)
+            return;
+        final int state = intent.getIntExtra(BluetoothProfile.EXTRA_STATE, BluetoothProfile.STATE_DISCONNECTED);
+        final int previousState = intent.getIntExtra(BluetoothProfile.EXTRA_PREVIOUS_STATE, BluetoothProfile.STATE_DISCONNECTED);
+        Log.v(TAG, "profile " + profile + " state " + previousState + " -> " + state);
+        mListener.onProfileStateChanged(profile, device, state, previousState);
+    }
+}
@@ -0,0 +1,98 @@
+
+package com.github.android.bluetooth_autopair.bt_module;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Discovered devices ordered by RSSI, strongest first, with an address index.
+ * A repeated inquiry response moves its device within the list instead of
+ * re-sorting everything, and tells the caller whether the order changed so
+ * the UI can redraw a single row otherwise. Devices with equal RSSI keep their
+ * arrival order; devices without RSSI go last.
+ * <p>
+ * Owned by the UI thread.
+ */
+public class RankedDeviceList {
+
+    private final List<DeviceSnapshot> mDevices = new ArrayList<DeviceSnapshot>();
+
+    private final Map<String, DeviceSnapshot> mByAddress = new HashMap<String, DeviceSnapshot>();
+
+    public DeviceSnapshot get(final String address) {
+        return mByAddress.get(address);
+    }
+
+    public DeviceSnapshot get(final int position) {
+        return mDevices.get(position);
+    }
+
+    public int size() {
+        return mDevices.size();
+    }
+
+    public void clear() {
+        mDevices.clear();
+        mByAddress.clear();
+    }
+
+    public int indexOf(final DeviceSnapshot snapshot) {
+        return mDevices.indexOf(snapshot);
+    }
+
+    /** @return the position the new device was inserted at */
+    public int add(final DeviceSnapshot snapshot) {
+        mByAddress.put(snapshot.getAddress(), snapshot);
+        final int position = insertionPoint(snapshot.getRssi());
+        mDevices.add(position, snapshot);
+        return position;
+    }
+
+    public void remove(final DeviceSnapshot snapshot) {
+        if (mByAddress.remove(snapshot.getAddress()) != null)
+            mDevices.remove(snapshot);
+    }
+
+    /**
+     * Sets a new RSSI on a listed device and moves it if needed.
+     *
+     * @return true if the device changed position
+     */
+    public boolean updateRssi(final DeviceSnapshot snapshot, final int rssi) {
+        if (snapshot.getRssi() == rssi)
+            return false;
+        final int from = mDevices.indexOf(snapshot);
+        mDevices.remove(from);
+        snapshot.setRssi(rssi);
+        final int to = insertionPoint(rssi);
+        mDevices.add(to, snapshot);
+        return to != from;
+    }
+
+    /** Strongest audio device at or above {@code minRssi} heard by the current inquiry, or null. */
+    public DeviceSnapshot strongestAudioDevice(final int minRssi) {
+        for (final DeviceSnapshot snapshot : mDevices) {
+            if (snapshot.getRssi() < minRssi)
+                return null;
+            if (snapshot.isConfirmed() && snapshot.isAudioDevice())
+                return snapshot;
+        }
+        return null;
+    }
+
+    /** First index whose RSSI is lower than {@code rssi}; binary search over the sorted list. */
+    private int insertionPoint(final int rssi) {
+        int low = 0;
+        int high = mDevices.size();
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (mDevices.get(mid).getRssi() >= rssi)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+}
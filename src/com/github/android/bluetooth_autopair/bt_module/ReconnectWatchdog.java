@@ -0,0 +1,137 @@
+
+package com.github.android.bluetooth_autopair.bt_module;
+
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Brings watched devices back after their link drops. It only reacts to
+ * A2DP and ACL events and its own backoff timers, so a healthy link costs
+ * nothing. Reconnects go through {@link Reconnector} as background
+ * sessions: no batch report and no circuit breaker accounting.
+ * <p>
+ * Not thread safe; AutoConnect only touches it from its worker thread.
+ */
+class ReconnectWatchdog {
+
+    private static final String TAG = ReconnectWatchdog.class.getSimpleName();
+
+    interface Reconnector {
+
+        boolean isConnecting(String address);
+
+        void reconnect(String address);
+    }
+
+    private final class Watch implements Runnable {
+
+        final String address;
+
+        /** When the link was lost, 0 while it is up. */
+        long outageStart = 0;
+
+        int attempts = 0;
+
+        Watch(final String address) {
+            this.address = address;
+        }
+
+        @Override
+        public void run() {
+            if (outageStart == 0)
+                return;
+            if (mReconnector.isConnecting(address)) {
+                // that session may be cancelled or dropped without telling us, so look again later
+                mScheduler.post(this, mBackoff.nextDelay(attempts + 1));
+                return;
+            }
+            attempts++;
+            Log.v(TAG, "reconnect " + address + ", attempt " + attempts);
+            mReconnector.reconnect(address);
+        }
+    }
+
+    private final Scheduler mScheduler;
+
+    private final ConnectMetrics mMetrics;
+
+    private final Reconnector mReconnector;
+
+    /** Spacing of reconnect attempts while a device stays away. */
+    private final RetryPolicy mBackoff = new RetryPolicy();
+
+    private final Map<String, Watch> mWatches = new HashMap<String, Watch>();
+
+    ReconnectWatchdog(final Scheduler scheduler, final ConnectMetrics metrics, final Reconnector reconnector) {
+        mScheduler = scheduler;
+        mMetrics = metrics;
+        mReconnector = reconnector;
+        mBackoff.setBackoff(2000, 5 * 60 * 1000);
+    }
+
+    void watch(final String address) {
+        if (!mWatches.containsKey(address))
+            mWatches.put(address, new Watch(address));
+    }
+
+    void unwatch(final String address) {
+        final Watch watch = mWatches.remove(address);
+        if (watch != null)
+            mScheduler.removeCallbacks(watch);
+    }
+
+    boolean isWatched(final String address) {
+        return mWatches.containsKey(address);
+    }
+
+    /** A2DP or ACL went down. Both usually arrive; only the first one counts. */
+    void onLinkLost(final String address) {
+        final Watch watch = mWatches.get(address);
+        if (watch == null || watch.outageStart != 0)
+            return;
+        Log.w(TAG, "link lost " + address);
+        watch.outageStart = mScheduler.now();
+        watch.attempts = 0;
+        mScheduler.removeCallbacks(watch);
+        mScheduler.post(watch, mBackoff.nextDelay(1));
+    }
+
+    /** The device paged us back; try now rather than waiting out the backoff. */
+    void onAclConnected(final String address) {
+        final Watch watch = mWatches.get(address);
+        if (watch == null || watch.outageStart == 0)
+            return;
+        mScheduler.removeCallbacks(watch);
+        mScheduler.post(watch, 0);
+    }
+
+    /**
+     * A2DP is up again, either from our reconnect ({@code reconnectMs} is its
+     * latency) or because the sink reconnected by itself ({@code reconnectMs} &lt; 0).
+     */
+    void onConnected(final String address, final long reconnectMs) {
+        final Watch watch = mWatches.get(address);
+        if (watch == null || watch.outageStart == 0)
+            return;
+        mScheduler.removeCallbacks(watch);
+        final long outage = mScheduler.now() - watch.outageStart;
+        mMetrics.record(ConnectMetrics.PHASE_OUTAGE, outage);
+        if (reconnectMs >= 0)
+            mMetrics.record(ConnectMetrics.PHASE_RECONNECT, reconnectMs);
+        Log.v(TAG, "link restored " + address + " after " + outage + " ms, " + watch.attempts + " attempts");
+        watch.outageStart = 0;
+        watch.attempts = 0;
+    }
+
+    void onReconnectFailed(final String address) {
+        final Watch watch = mWatches.get(address);
+        if (watch == null || watch.outageStart == 0)
+            return;
+        final long delay = mBackoff.nextDelay(watch.attempts + 1);
+        Log.v(TAG, "reconnect " + address + " failed, next in " + delay + " ms");
+        mScheduler.removeCallbacks(watch);
+        mScheduler.post(watch, delay);
+    }
+}
@@ -0,0 +1,222 @@
+
+package com.github.android.bluetooth_autopair.bt_module;
+
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * {@link BtStack} decorator that writes every call, its return value and
+ * every callback to a {@link FlightRecorder} before passing it on. Callbacks
+ * are recorded on the worker thread, as the callback executor hands them to
+ * AutoConnect, so the trace has them in the order the engine handled them;
+ * one dropped by the executor after close is not recorded. The recorder is
+ * owned by this stack and closed with it.
+ */
+public class RecordingBtStack implements BtStack {
+
+    private final BtStack mDelegate;
+
+    private final FlightRecorder mRecorder;
+
+    public RecordingBtStack(final BtStack delegate, final FlightRecorder recorder) {
+        mDelegate = delegate;
+        mRecorder = recorder;
+    }
+
+    public FlightRecorder getRecorder() {
+        return mRecorder;
+    }
+
+    private static int toInt(final boolean value) {
+        return value ? 1 : 0;
+    }
+
+    @Override
+    public void open(final Callback callback, final Executor callbackExecutor) {
+        mRecorder.record(FlightRecorder.OP_OPEN, null, 0, 0);
+        mDelegate.open(new Callback() {
+
+            @Override
+            public void onA2dpServiceConnected() {
+                mRecorder.record(FlightRecorder.CB_A2DP_SERVICE_CONNECTED, null, 0, 0);
+                callback.onA2dpServiceConnected();
+            }
+
+            @Override
+            public void onA2dpServiceDisconnected() {
+                mRecorder.record(FlightRecorder.CB_A2DP_SERVICE_DISCONNECTED, null, 0, 0);
+                callback.onA2dpServiceDisconnected();
+            }
+
+            @Override
+            public void onBondStateChanged(final String address, final int bondState, final int previousBondState) {
+                mRecorder.record(FlightRecorder.CB_BOND_STATE_CHANGED, address, bondState, previousBondState);
+                callback.onBondStateChanged(address, bondState, previousBondState);
+            }
+
+            @Override
+            public void onA2dpStateChanged(final String address, final int state, final int previousState) {
+                mRecorder.record(FlightRecorder.CB_A2DP_STATE_CHANGED, address, state, previousState);
+                callback.onA2dpStateChanged(address, state, previousState);
+            }
+
+            @Override
+            public void onHeadsetServiceConnected() {
+                mRecorder.record(FlightRecorder.CB_HEADSET_SERVICE_CONNECTED, null, 0, 0);
+                callback.onHeadsetServiceConnected();
+            }
+
+            @Override
+            public void onHeadsetServiceDisconnected() {
+                mRecorder.record(FlightRecorder.CB_HEADSET_SERVICE_DISCONNECTED, null, 0, 0);
+                callback.onHeadsetServiceDisconnected();
+            }
+
+            @Override
+            public void onHeadsetStateChanged(final String address, final int state, final int previousState) {
+                mRecorder.record(FlightRecorder.CB_HEADSET_STATE_CHANGED, address, state, previousState);
+                callback.onHeadsetStateChanged(address, state, previousState);
+            }
+
+            @Override
+            public void onAclStateChanged(final String address, final boolean connected) {
+                mRecorder.record(FlightRecorder.CB_ACL_STATE_CHANGED, address, toInt(connected), 0);
+                callback.onAclStateChanged(address, connected);
+            }
+        }, callbackExecutor);
+    }
+
+    /** Closes the stack, then flushes and closes the recorder. */
+    @Override
+    public void close() {
+        mDelegate.close();
+        mRecorder.record(FlightRecorder.OP_CLOSE, null, 0, 0);
+        mRecorder.close();
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return mDelegate.isEnabled();
+    }
+
+    @Override
+    public boolean isA2dpServiceReady() {
+        return mDelegate.isA2dpServiceReady();
+    }
+
+    @Override
+    public Set<String> getBondedAddresses() {
+        final Set<String> addresses = mDelegate.getBondedAddresses();
+        mRecorder.record(FlightRecorder.OP_GET_BONDED_ADDRESSES, null, addresses.size(), 0);
+        for (final String address : addresses)
+            mRecorder.record(FlightRecorder.OP_BONDED_ADDRESS, address, 0, 0);
+        return addresses;
+    }
+
+    @Override
+    public int getBondState(final String address) {
+        final int state = mDelegate.getBondState(address);
+        mRecorder.record(FlightRecorder.OP_GET_BOND_STATE, address, state, 0);
+        return state;
+    }
+
+    @Override
+    public boolean createBond(final String address) {
+        final boolean result = mDelegate.createBond(address);
+        mRecorder.record(FlightRecorder.OP_CREATE_BOND, address, result);
+        return result;
+    }
+
+    @Override
+    public boolean removeBond(final String address) {
+        final boolean result = mDelegate.removeBond(address);
+        mRecorder.record(FlightRecorder.OP_REMOVE_BOND, address, result);
+        return result;
+    }
+
+    @Override
+    public boolean cancelBond(final String address) {
+        final boolean result = mDelegate.cancelBond(address);
+        mRecorder.record(FlightRecorder.OP_CANCEL_BOND, address, result);
+        return result;
+    }
+
+    @Override
+    public void setPairingTarget(final String address, final String pin) {
+        mDelegate.setPairingTarget(address, pin);
+        mRecorder.record(FlightRecorder.OP_SET_PAIRING_TARGET, address, address != null);
+    }
+
+    @Override
+    public boolean startDiscovery() {
+        final boolean result = mDelegate.startDiscovery();
+        mRecorder.record(FlightRecorder.OP_START_DISCOVERY, null, result);
+        return result;
+    }
+
+    @Override
+    public boolean cancelDiscovery() {
+        final boolean result = mDelegate.cancelDiscovery();
+        mRecorder.record(FlightRecorder.OP_CANCEL_DISCOVERY, null, result);
+        return result;
+    }
+
+    @Override
+    public boolean isDiscovering() {
+        return mDelegate.isDiscovering();
+    }
+
+    @Override
+    public boolean connectA2dp(final String address) {
+        final boolean result = mDelegate.connectA2dp(address);
+        mRecorder.record(FlightRecorder.OP_CONNECT_A2DP, address, result);
+        return result;
+    }
+
+    @Override
+    public boolean disconnectA2dp(final String address) {
+        final boolean result = mDelegate.disconnectA2dp(address);
+        mRecorder.record(FlightRecorder.OP_DISCONNECT_A2DP, address, result);
+        return result;
+    }
+
+    @Override
+    public boolean setA2dpPriority(final String address, final int priority) {
+        final boolean result = mDelegate.setA2dpPriority(address, priority);
+        mRecorder.record(FlightRecorder.OP_SET_A2DP_PRIORITY, address, toInt(result), priority);
+        return result;
+    }
+
+    @Override
+    public int getA2dpConnectionState(final String address) {
+        final int state = mDelegate.getA2dpConnectionState(address);
+        mRecorder.record(FlightRecorder.OP_GET_A2DP_STATE, address, state, 0);
+        return state;
+    }
+
+    @Override
+    public boolean isHeadsetServiceReady() {
+        return mDelegate.isHeadsetServiceReady();
+    }
+
+    @Override
+    public boolean connectHeadset(final String address) {
+        final boolean result = mDelegate.connectHeadset(address);
+        mRecorder.record(FlightRecorder.OP_CONNECT_HEADSET, address, result);
+        return result;
+    }
+
+    @Override
+    public boolean disconnectHeadset(final String address) {
+        final boolean result = mDelegate.disconnectHeadset(address);
+        mRecorder.record(FlightRecorder.OP_DISCONNECT_HEADSET, address, result);
+        return result;
+    }
+
+    @Override
+    public int getHeadsetConnectionState(final String address) {
+        final int state = mDelegate.getHeadsetConnectionState(address);
+        mRecorder.record(FlightRecorder.OP_GET_HEADSET_STATE, address, state, 0);
+        return state;
+    }
+}
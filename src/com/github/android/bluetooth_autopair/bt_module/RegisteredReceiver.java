@@ -0,0 +1,42 @@
+package com.github.android.bluetooth_autopair.bt_module;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.IntentFilter;
+import android.os.Handler;
+
+/**
+ * A receiver that registers itself with {@link #start} and unregisters with
+ * {@link #stop}, both safe to repeat. Subclasses give the filter and handle
+ * the broadcasts.
+ */
+abstract class RegisteredReceiver extends BroadcastReceiver {
+
+    private final Context mContext;
+
+    private boolean mRegistered = false;
+
+    RegisteredReceiver(final Context context) {
+        mContext = context;
+    }
+
+    protected abstract IntentFilter createFilter();
+
+    /**
+     * Starts listening. Broadcasts are delivered on the looper of
+     * {@code handler}, or on the main thread when it is null.
+     */
+    public void start(final Handler handler) {
+        if (mRegistered)
+            return;
+        mContext.registerReceiver(this, createFilter(), null, handler);
+        mRegistered = true;
+    }
+
+    public void stop() {
+        if (!mRegistered)
+            return;
+        mContext.unregisterReceiver(this);
+        mRegistered = false;
+    }
+}
@@ -0,0 +1,385 @@
+
+package com.github.android.bluetooth_autopair.bt_module;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothProfile;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * {@link BtStack} that plays back one run of a {@link FlightRecorder} trace,
+ * as cut by {@link #splitRuns}. Callbacks fire on the {@link Scheduler} the
+ * engine runs on, at their recorded offsets from the run's
+ * {@link FlightRecorder#OP_OPEN}; calls that start work (bond, connect,
+ * disconnect, discovery) return what they returned in the field, in order
+ * per device; state queries are answered from the state the replayed
+ * callbacks have built up. Like {@link SimulatedBtStack} it is plain Java and
+ * runs on a desktop JVM, and on a {@link VirtualScheduler} a replay is
+ * deterministic and takes no wall time.
+ * <p>
+ * Session starts and prepares are handed to a {@link Driver}, normally calls
+ * into {@link AutoConnect#startConnectByAddress} and {@link AutoConnect#prepare},
+ * so the connect logic under test sees the same requests against the same
+ * broadcast timeline. Calls with no
+ * recorded counterpart are answered false and counted as divergences.
+ */
+public class ReplayBtStack implements BtStack {
+
+    public interface Driver {
+
+        void onSessionStart(String address);
+
+        void onPrepare(String address);
+    }
+
+    private final List<FlightRecorder.Record> mRecords;
+
+    private final Scheduler mScheduler;
+
+    private final Map<String, Queue<FlightRecorder.Record>> mResults = new HashMap<String, Queue<FlightRecorder.Record>>();
+
+    private final Set<String> mBondedAddresses = new HashSet<String>();
+
+    private final Map<String, Integer> mBondStates = new HashMap<String, Integer>();
+
+    private final Map<String, Integer> mA2dpStates = new HashMap<String, Integer>();
+
+    private final Map<String, Integer> mHeadsetStates = new HashMap<String, Integer>();
+
+    private Driver mDriver;
+
+    private Callback mCallback;
+
+    private Executor mCallbackExecutor;
+
+    private boolean mA2dpServiceReady = false;
+
+    private boolean mHeadsetServiceReady = false;
+
+    private boolean mDiscovering = false;
+
+    private int mDivergences = 0;
+
+    /**
+     * @param records one run in sequence order, e.g. from {@link #splitRuns}
+     * @param scheduler the scheduler the engine under test runs on
+     */
+    public ReplayBtStack(final List<FlightRecorder.Record> records, final Scheduler scheduler) {
+        mRecords = records;
+        mScheduler = scheduler;
+        // the bonded set is taken from the first snapshot in the run
+        boolean seenBonds = false;
+        int bondsToRead = 0;
+        for (final FlightRecorder.Record record : records) {
+            switch (record.type) {
+                case FlightRecorder.OP_GET_BONDED_ADDRESSES:
+                    if (!seenBonds)
+                        bondsToRead = record.arg1;
+                    seenBonds = true;
+                    break;
+                case FlightRecorder.OP_BONDED_ADDRESS:
+                    if (bondsToRead > 0) {
+                        bondsToRead--;
+                        mBondedAddresses.add(record.address);
+                        mBondStates.put(record.address, BluetoothDevice.BOND_BONDED);
+                    }
+                    break;
+                case FlightRecorder.OP_CREATE_BOND:
+                case FlightRecorder.OP_REMOVE_BOND:
+                case FlightRecorder.OP_CANCEL_BOND:
+                case FlightRecorder.OP_START_DISCOVERY:
+                case FlightRecorder.OP_CANCEL_DISCOVERY:
+                case FlightRecorder.OP_CONNECT_A2DP:
+                case FlightRecorder.OP_DISCONNECT_A2DP:
+                case FlightRecorder.OP_SET_A2DP_PRIORITY:
+                case FlightRecorder.OP_CONNECT_HEADSET:
+                case FlightRecorder.OP_DISCONNECT_HEADSET:
+                    final String key = key(record.type, record.address);
+                    Queue<FlightRecorder.Record> queue = mResults.get(key);
+                    if (queue == null) {
+                        queue = new ArrayDeque<FlightRecorder.Record>();
+                        mResults.put(key, queue);
+                    }
+                    queue.add(record);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Cuts a trace, e.g. from {@link FlightRecorder#read}, into the runs the
+     * service made, one per {@link FlightRecorder#OP_OPEN}. Each run is timed
+     * by its own clock, so only records of one run can be replayed together.
+     * Records before the first OP_OPEN belong to a run whose start the ring
+     * has overwritten and are left out.
+     */
+    public static List<List<FlightRecorder.Record>> splitRuns(final List<FlightRecorder.Record> records) {
+        final List<List<FlightRecorder.Record>> runs = new ArrayList<List<FlightRecorder.Record>>();
+        List<FlightRecorder.Record> run = null;
+        for (final FlightRecorder.Record record : records) {
+            if (record.type == FlightRecorder.OP_OPEN) {
+                run = new ArrayList<FlightRecorder.Record>();
+                runs.add(run);
+            }
+            if (run != null)
+                run.add(record);
+        }
+        return runs;
+    }
+
+    /** Receives the recorded session starts; set before {@link #open}. */
+    public synchronized void setDriver(final Driver driver) {
+        mDriver = driver;
+    }
+
+    /** Calls made by the code under test that the trace has no answer for. */
+    public synchronized int getDivergenceCount() {
+        return mDivergences;
+    }
+
+    private static String key(final int type, final String address) {
+        return type + "/" + address;
+    }
+
+    private synchronized boolean replayResult(final int type, final String address) {
+        final Queue<FlightRecorder.Record> queue = mResults.get(key(type, address));
+        final FlightRecorder.Record record = queue != null ? queue.poll() : null;
+        if (record == null) {
+            mDivergences++;
+            return false;
+        }
+        return record.arg1 != 0;
+    }
+
+    private void dispatch(final Runnable runnable) {
+        final Executor executor = mCallbackExecutor;
+        if (executor != null)
+            executor.execute(runnable);
+    }
+
+    private static int get(final Map<String, Integer> states, final String address, final int defaultValue) {
+        final Integer state = states.get(address);
+        return state != null ? state : defaultValue;
+    }
+
+    /** Applies {@code record} to the replayed state and delivers it. Runs on the scheduler. */
+    private synchronized void play(final FlightRecorder.Record record) {
+        if (mCallbackExecutor == null)
+            return;
+        final Callback callback = mCallback;
+        switch (record.type) {
+            case FlightRecorder.CB_A2DP_SERVICE_CONNECTED:
+                mA2dpServiceReady = true;
+                dispatch(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onA2dpServiceConnected();
+                    }
+                });
+                break;
+            case FlightRecorder.CB_A2DP_SERVICE_DISCONNECTED:
+                mA2dpServiceReady = false;
+                dispatch(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onA2dpServiceDisconnected();
+                    }
+                });
+                break;
+            case FlightRecorder.CB_HEADSET_SERVICE_CONNECTED:
+                mHeadsetServiceReady = true;
+                dispatch(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onHeadsetServiceConnected();
+                    }
+                });
+                break;
+            case FlightRecorder.CB_HEADSET_SERVICE_DISCONNECTED:
+                mHeadsetServiceReady = false;
+                dispatch(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onHeadsetServiceDisconnected();
+                    }
+                });
+                break;
+            case FlightRecorder.CB_BOND_STATE_CHANGED:
+                mBondStates.put(record.address, record.arg1);
+                dispatch(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onBondStateChanged(record.address, record.arg1, record.arg2);
+                    }
+                });
+                break;
+            case FlightRecorder.CB_A2DP_STATE_CHANGED:
+                mA2dpStates.put(record.address, record.arg1);
+                dispatch(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onA2dpStateChanged(record.address, record.arg1, record.arg2);
+                    }
+                });
+                break;
+            case FlightRecorder.CB_HEADSET_STATE_CHANGED:
+                mHeadsetStates.put(record.address, record.arg1);
+                dispatch(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onHeadsetStateChanged(record.address, record.arg1, record.arg2);
+                    }
+                });
+                break;
+            case FlightRecorder.CB_ACL_STATE_CHANGED:
+                dispatch(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onAclStateChanged(record.address, record.arg1 != 0);
+                    }
+                });
+                break;
+            case FlightRecorder.EV_SESSION_START:
+                if (mDriver != null)
+                    mDriver.onSessionStart(record.address);
+                break;
+            case FlightRecorder.EV_PREPARE:
+                if (mDriver != null)
+                    mDriver.onPrepare(record.address);
+                break;
+            default:
+                break;
+        }
+    }
+
+    @Override
+    public synchronized void open(final Callback callback, final Executor callbackExecutor) {
+        mCallback = callback;
+        mCallbackExecutor = callbackExecutor;
+        if (mRecords.isEmpty())
+            return;
+        // offsets count from the run's open, which is now
+        final long origin = mRecords.get(0).time;
+        for (final FlightRecorder.Record record : mRecords) {
+            if (record.type >= FlightRecorder.OP_OPEN && record.type < FlightRecorder.EV_SESSION_START)
+                continue;
+            mScheduler.post(new Runnable() {
+                @Override
+                public void run() {
+                    play(record);
+                }
+            }, Math.max(0, record.time - origin));
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        mCallbackExecutor = null;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isA2dpServiceReady() {
+        return mA2dpServiceReady;
+    }
+
+    @Override
+    public synchronized Set<String> getBondedAddresses() {
+        return new HashSet<String>(mBondedAddresses);
+    }
+
+    @Override
+    public synchronized int getBondState(final String address) {
+        return get(mBondStates, address, BluetoothDevice.BOND_NONE);
+    }
+
+    @Override
+    public boolean createBond(final String address) {
+        return replayResult(FlightRecorder.OP_CREATE_BOND, address);
+    }
+
+    @Override
+    public boolean removeBond(final String address) {
+        return replayResult(FlightRecorder.OP_REMOVE_BOND, address);
+    }
+
+    @Override
+    public boolean cancelBond(final String address) {
+        return replayResult(FlightRecorder.OP_CANCEL_BOND, address);
+    }
+
+    @Override
+    public void setPairingTarget(final String address, final String pin) {
+    }
+
+    @Override
+    public synchronized boolean startDiscovery() {
+        mDiscovering = replayResult(FlightRecorder.OP_START_DISCOVERY, null);
+        return mDiscovering;
+    }
+
+    @Override
+    public synchronized boolean cancelDiscovery() {
+        mDiscovering = false;
+        return replayResult(FlightRecorder.OP_CANCEL_DISCOVERY, null);
+    }
+
+    @Override
+    public synchronized boolean isDiscovering() {
+        return mDiscovering;
+    }
+
+    @Override
+    public boolean connectA2dp(final String address) {
+        return replayResult(FlightRecorder.OP_CONNECT_A2DP, address);
+    }
+
+    @Override
+    public boolean disconnectA2dp(final String address) {
+        return replayResult(FlightRecorder.OP_DISCONNECT_A2DP, address);
+    }
+
+    @Override
+    public boolean setA2dpPriority(final String address, final int priority) {
+        return replayResult(FlightRecorder.OP_SET_A2DP_PRIORITY, address);
+    }
+
+    @Override
+    public synchronized int getA2dpConnectionState(final String address) {
+        return get(mA2dpStates, address, BluetoothProfile.STATE_DISCONNECTED);
+    }
+
+    @Override
+    public synchronized boolean isHeadsetServiceReady() {
+        return mHeadsetServiceReady;
+    }
+
+    @Override
+    public boolean connectHeadset(final String address) {
+        return replayResult(FlightRecorder.OP_CONNECT_HEADSET, address);
+    }
+
+    @Override
+    public boolean disconnectHeadset(final String address) {
+        return replayResult(FlightRecorder.OP_DISCONNECT_HEADSET, address);
+    }
+
+    @Override
+    public synchronized int getHeadsetConnectionState(final String address) {
+        return get(mHeadsetStates, address, BluetoothProfile.STATE_DISCONNECTED);
+    }
+}
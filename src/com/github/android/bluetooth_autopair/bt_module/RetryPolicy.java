@@ -0,0 +1,99 @@
+
+package com.github.android.bluetooth_autopair.bt_module;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Decides whether a failed bond or connect is tried again and after how long,
+ * and keeps a per-device circuit breaker so that a device that keeps failing
+ * is refused for a while instead of tying up the radio. Times are passed in by
+ * the caller, which keeps this class free of clocks and threads.
+ */
+public class RetryPolicy {
+
+    public static final int PHASE_BOND = 0;
+
+    public static final int PHASE_CONNECT = 1;
+
+    private final int[] mMaxAttempts = { 2, 3 };
+
+    private long mBaseDelayMs = 500;
+
+    private long mMaxDelayMs = 8000;
+
+    private int mBreakerThreshold = 3;
+
+    private long mBreakerCooldownMs = 60000;
+
+    private final Random mRandom = new Random();
+
+    private static final class Breaker {
+
+        int consecutiveFailures = 0;
+
+        long openUntil = 0;
+    }
+
+    private final Map<String, Breaker> mBreakers = new HashMap<String, Breaker>();
+
+    /** Total attempts allowed for {@code phase}, including the first one. */
+    public void setMaxAttempts(final int phase, final int maxAttempts) {
+        mMaxAttempts[phase] = maxAttempts;
+    }
+
+    public void setBackoff(final long baseDelayMs, final long maxDelayMs) {
+        mBaseDelayMs = baseDelayMs;
+        mMaxDelayMs = maxDelayMs;
+    }
+
+    /** Open the breaker after {@code threshold} failed sessions in a row, for {@code cooldownMs}. */
+    public void setCircuitBreaker(final int threshold, final long cooldownMs) {
+        mBreakerThreshold = threshold;
+        mBreakerCooldownMs = cooldownMs;
+    }
+
+    /** Makes the backoff jitter repeatable, e.g. for a simulated run. */
+    public void setJitterSeed(final long seed) {
+        mRandom.setSeed(seed);
+    }
+
+    public boolean shouldRetry(final int phase, final int attemptsSoFar) {
+        return attemptsSoFar < mMaxAttempts[phase];
+    }
+
+    /**
+     * Exponential backoff with equal jitter: the delay before attempt
+     * {@code attemptsSoFar + 1} lies in [d/2, d] with d = base * 2^(attempts-1),
+     * capped at the max delay.
+     */
+    public long nextDelay(final int attemptsSoFar) {
+        final int shift = Math.max(0, Math.min(attemptsSoFar - 1, 16));
+        final long delay = Math.min(mMaxDelayMs, mBaseDelayMs << shift);
+        final long half = delay / 2;
+        return half + (long) (mRandom.nextDouble() * (delay - half));
+    }
+
+    public boolean isCircuitOpen(final String address, final long now) {
+        final Breaker breaker = mBreakers.get(address);
+        return breaker != null && now < breaker.openUntil;
+    }
+
+    public void onSessionFinished(final String address, final boolean success, final long now) {
+        if (success) {
+            mBreakers.remove(address);
+            return;
+        }
+        Breaker breaker = mBreakers.get(address);
+        if (breaker == null) {
+            breaker = new Breaker();
+            mBreakers.put(address, breaker);
+        }
+        breaker.consecutiveFailures++;
+        if (breaker.consecutiveFailures >= mBreakerThreshold) {
+            breaker.openUntil = now + mBreakerCooldownMs;
+            breaker.consecutiveFailures = 0;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.github.android.bluetooth_autopair.bt_module;
+
+/**
+ * The clock and the single thread AutoConnect runs on. Messages and
+ * runnables are executed one at a time, in time order, and ties keep their
+ * submission order. {@link LooperScheduler} runs on a HandlerThread;
+ * {@link VirtualScheduler} is a plain Java discrete-event loop whose clock
+ * only moves when it is told to, so a run on it is repeatable.
+ */
+public interface Scheduler {
+
+    /** Receives the messages sent with {@link Scheduler#sendMessage}. */
+    interface Target {
+
+        void handleMessage(int what, int arg1, Object obj);
+    }
+
+    /** Milliseconds on a monotonic clock; only differences are meaningful. */
+    long now();
+
+    /** Set once, before the first message is sent. */
+    void setTarget(Target target);
+
+    void sendMessage(int what, int arg1, Object obj, long delayMs);
+
+    /** Removes pending messages {@code what}; all of them when {@code obj} is null. */
+    void removeMessages(int what, Object obj);
+
+    void post(Runnable runnable, long delayMs);
+
+    void removeCallbacks(Runnable runnable);
+
+    /** Drops every pending message and runnable. */
+    void removeAll();
+
+    /** Stops the thread; nothing queued afterwards runs. */
+    void quit();
+}
@@ -0,0 +1,461 @@
+
+package com.github.android.bluetooth_autopair.bt_module;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothProfile;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * In-memory {@link BtStack} with configurable latencies, failure rates and
+ * device population. Uses only plain Java, so it runs on a desktop JVM as well
+ * as on a device. Random draws come from a seeded {@link Random} and every
+ * delay is timed by the {@link Scheduler} the engine runs on, so with a
+ * {@link VirtualScheduler} a given seed and call sequence produce the same
+ * outcomes at the same virtual times.
+ */
+public class SimulatedBtStack implements BtStack {
+
+    private static final class SimDevice {
+
+        int bondState = BluetoothDevice.BOND_NONE;
+
+        int a2dpState = BluetoothProfile.STATE_DISCONNECTED;
+
+        int headsetState = BluetoothProfile.STATE_DISCONNECTED;
+
+        boolean headsetSupported = true;
+
+        int priority = 100;
+
+        boolean reachable = true;
+
+        boolean aclConnected = false;
+
+        /** Bumped by each createBond and cancelBond, so a cancelled bond does not complete. */
+        int bondGeneration = 0;
+    }
+
+    private final Random mRandom;
+
+    private final Scheduler mScheduler;
+
+    private boolean mClosed = false;
+
+    private final Map<String, SimDevice> mDevices = new HashMap<String, SimDevice>();
+
+    private Callback mCallback;
+
+    private Executor mCallbackExecutor;
+
+    private boolean mA2dpServiceReady = false;
+
+    private boolean mHeadsetServiceReady = false;
+
+    private boolean mDiscovering = false;
+
+    private long mBindLatencyMs = 50;
+
+    private long mBondLatencyMinMs = 800;
+
+    private long mBondLatencyMaxMs = 3000;
+
+    private long mConnectLatencyMinMs = 300;
+
+    private long mConnectLatencyMaxMs = 1500;
+
+    private long mDiscoveryDurationMs = 12000;
+
+    private float mBondFailureRate = 0f;
+
+    private float mConnectFailureRate = 0f;
+
+    public SimulatedBtStack(final long seed, final Scheduler scheduler) {
+        mRandom = new Random(seed);
+        mScheduler = scheduler;
+    }
+
+    public synchronized void setBindLatency(final long latencyMs) {
+        mBindLatencyMs = latencyMs;
+    }
+
+    public synchronized void setBondLatency(final long minMs, final long maxMs) {
+        mBondLatencyMinMs = minMs;
+        mBondLatencyMaxMs = maxMs;
+    }
+
+    public synchronized void setConnectLatency(final long minMs, final long maxMs) {
+        mConnectLatencyMinMs = minMs;
+        mConnectLatencyMaxMs = maxMs;
+    }
+
+    public synchronized void setDiscoveryDuration(final long durationMs) {
+        mDiscoveryDurationMs = durationMs;
+    }
+
+    /** Fraction (0-1) of bonds that end in BOND_NONE. */
+    public synchronized void setBondFailureRate(final float rate) {
+        mBondFailureRate = rate;
+    }
+
+    /** Fraction (0-1) of accepted A2DP and headset connects that drop back to disconnected. */
+    public synchronized void setConnectFailureRate(final float rate) {
+        mConnectFailureRate = rate;
+    }
+
+    /** The headset proxy goes away, as when the phone process restarts. It does not come back. */
+    public synchronized void dropHeadsetService() {
+        if (!mHeadsetServiceReady)
+            return;
+        mHeadsetServiceReady = false;
+        final Callback callback = mCallback;
+        dispatch(new Runnable() {
+            @Override
+            public void run() {
+                callback.onHeadsetServiceDisconnected();
+            }
+        });
+    }
+
+    public synchronized void addDevice(final String address, final boolean bonded) {
+        final SimDevice device = new SimDevice();
+        if (bonded)
+            device.bondState = BluetoothDevice.BOND_BONDED;
+        mDevices.put(address, device);
+    }
+
+    /**
+     * Adds {@code count} devices with generated addresses, roughly
+     * {@code bondedFraction} of them already bonded.
+     *
+     * @return the generated addresses
+     */
+    public synchronized Set<String> populate(final int count, final float bondedFraction) {
+        final Set<String> addresses = new HashSet<String>();
+        for (int i = 0; i < count; i++) {
+            final String address = String.format(Locale.US, "00:5A:%02X:%02X:%02X:%02X",
+                    (i >> 24) & 0xFF, (i >> 16) & 0xFF, (i >> 8) & 0xFF, i & 0xFF);
+            addDevice(address, mRandom.nextFloat() < bondedFraction);
+            addresses.add(address);
+        }
+        return addresses;
+    }
+
+    /** Whether {@code address} offers the headset profile; devices do by default. */
+    public synchronized void setHeadsetSupported(final String address, final boolean supported) {
+        final SimDevice device = mDevices.get(address);
+        if (device != null)
+            device.headsetSupported = supported;
+    }
+
+    /**
+     * Takes a device in or out of range. Going out of range drops an
+     * established A2DP link; unreachable devices fail bond and connect.
+     */
+    public synchronized void setReachable(final String address, final boolean reachable) {
+        final SimDevice device = mDevices.get(address);
+        if (device == null)
+            return;
+        device.reachable = reachable;
+        if (!reachable && device.a2dpState != BluetoothProfile.STATE_DISCONNECTED)
+            setProfileState(BluetoothProfile.A2DP, address, device, BluetoothProfile.STATE_DISCONNECTED);
+        if (!reachable && device.headsetState != BluetoothProfile.STATE_DISCONNECTED)
+            setProfileState(BluetoothProfile.HEADSET, address, device, BluetoothProfile.STATE_DISCONNECTED);
+        if (!reachable)
+            setAclConnected(address, device, false);
+    }
+
+    private long draw(final long minMs, final long maxMs) {
+        if (maxMs <= minMs)
+            return minMs;
+        return minMs + (long) (mRandom.nextDouble() * (maxMs - minMs));
+    }
+
+    private void schedule(final Runnable runnable, final long delayMs) {
+        if (mClosed)
+            return;
+        mScheduler.post(runnable, delayMs);
+    }
+
+    private void dispatch(final Runnable runnable) {
+        final Executor executor = mCallbackExecutor;
+        if (executor != null)
+            executor.execute(runnable);
+    }
+
+    private void setBondState(final String address, final SimDevice device, final int bondState) {
+        final int previous = device.bondState;
+        device.bondState = bondState;
+        final Callback callback = mCallback;
+        dispatch(new Runnable() {
+            @Override
+            public void run() {
+                callback.onBondStateChanged(address, bondState, previous);
+            }
+        });
+    }
+
+    private static int getProfileState(final int profile, final SimDevice device) {
+        return profile == BluetoothProfile.HEADSET ? device.headsetState : device.a2dpState;
+    }
+
+    private void setProfileState(final int profile, final String address, final SimDevice device, final int state) {
+        final int previous = getProfileState(profile, device);
+        if (profile == BluetoothProfile.HEADSET)
+            device.headsetState = state;
+        else
+            device.a2dpState = state;
+        final Callback callback = mCallback;
+        dispatch(new Runnable() {
+            @Override
+            public void run() {
+                if (profile == BluetoothProfile.HEADSET)
+                    callback.onHeadsetStateChanged(address, state, previous);
+                else
+                    callback.onA2dpStateChanged(address, state, previous);
+            }
+        });
+        if (state == BluetoothProfile.STATE_CONNECTED)
+            setAclConnected(address, device, true);
+    }
+
+    private void setAclConnected(final String address, final SimDevice device, final boolean connected) {
+        if (device.aclConnected == connected)
+            return;
+        device.aclConnected = connected;
+        final Callback callback = mCallback;
+        dispatch(new Runnable() {
+            @Override
+            public void run() {
+                callback.onAclStateChanged(address, connected);
+            }
+        });
+    }
+
+    @Override
+    public synchronized void open(final Callback callback, final Executor callbackExecutor) {
+        mCallback = callback;
+        mCallbackExecutor = callbackExecutor;
+        schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SimulatedBtStack.this) {
+                    if (mCallbackExecutor == null)
+                        return;
+                    mA2dpServiceReady = true;
+                    dispatch(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onA2dpServiceConnected();
+                        }
+                    });
+                }
+            }
+        }, mBindLatencyMs);
+        schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SimulatedBtStack.this) {
+                    if (mCallbackExecutor == null)
+                        return;
+                    mHeadsetServiceReady = true;
+                    dispatch(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onHeadsetServiceConnected();
+                        }
+                    });
+                }
+            }
+        }, mBindLatencyMs);
+    }
+
+    @Override
+    public synchronized void close() {
+        mCallbackExecutor = null;
+        mA2dpServiceReady = false;
+        mHeadsetServiceReady = false;
+        mClosed = true;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isA2dpServiceReady() {
+        return mA2dpServiceReady;
+    }
+
+    @Override
+    public synchronized Set<String> getBondedAddresses() {
+        final Set<String> addresses = new HashSet<String>();
+        for (final Map.Entry<String, SimDevice> entry : mDevices.entrySet()) {
+            if (entry.getValue().bondState == BluetoothDevice.BOND_BONDED)
+                addresses.add(entry.getKey());
+        }
+        return addresses;
+    }
+
+    @Override
+    public synchronized int getBondState(final String address) {
+        final SimDevice device = mDevices.get(address);
+        return device != null ? device.bondState : BluetoothDevice.BOND_NONE;
+    }
+
+    @Override
+    public synchronized boolean createBond(final String address) {
+        final SimDevice device = mDevices.get(address);
+        if (device == null || device.bondState != BluetoothDevice.BOND_NONE)
+            return false;
+        setBondState(address, device, BluetoothDevice.BOND_BONDING);
+        final boolean fail = !device.reachable || mRandom.nextFloat() < mBondFailureRate;
+        final int generation = ++device.bondGeneration;
+        schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SimulatedBtStack.this) {
+                    if (device.bondGeneration != generation)
+                        return;
+                    setBondState(address, device, fail ? BluetoothDevice.BOND_NONE : BluetoothDevice.BOND_BONDED);
+                }
+            }
+        }, draw(mBondLatencyMinMs, mBondLatencyMaxMs));
+        return true;
+    }
+
+    @Override
+    public synchronized boolean removeBond(final String address) {
+        final SimDevice device = mDevices.get(address);
+        if (device == null || device.bondState != BluetoothDevice.BOND_BONDED)
+            return false;
+        setBondState(address, device, BluetoothDevice.BOND_NONE);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean cancelBond(final String address) {
+        final SimDevice device = mDevices.get(address);
+        if (device == null || device.bondState != BluetoothDevice.BOND_BONDING)
+            return false;
+        device.bondGeneration++;
+        setBondState(address, device, BluetoothDevice.BOND_NONE);
+        return true;
+    }
+
+    /** Simulated bonds never ask for a PIN. */
+    @Override
+    public void setPairingTarget(final String address, final String pin) {
+    }
+
+    @Override
+    public synchronized boolean startDiscovery() {
+        if (mDiscovering)
+            return true;
+        mDiscovering = true;
+        schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SimulatedBtStack.this) {
+                    mDiscovering = false;
+                }
+            }
+        }, mDiscoveryDurationMs);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean cancelDiscovery() {
+        mDiscovering = false;
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isDiscovering() {
+        return mDiscovering;
+    }
+
+    private boolean connectProfile(final int profile, final String address) {
+        final SimDevice device = mDevices.get(address);
+        if (device == null || device.bondState != BluetoothDevice.BOND_BONDED
+                || getProfileState(profile, device) != BluetoothProfile.STATE_DISCONNECTED)
+            return false;
+        setProfileState(profile, address, device, BluetoothProfile.STATE_CONNECTING);
+        final boolean fail = !device.reachable || mRandom.nextFloat() < mConnectFailureRate;
+        schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SimulatedBtStack.this) {
+                    if (getProfileState(profile, device) != BluetoothProfile.STATE_CONNECTING)
+                        return;
+                    setProfileState(profile, address, device,
+                            fail ? BluetoothProfile.STATE_DISCONNECTED : BluetoothProfile.STATE_CONNECTED);
+                }
+            }
+        }, draw(mConnectLatencyMinMs, mConnectLatencyMaxMs));
+        return true;
+    }
+
+    private boolean disconnectProfile(final int profile, final String address) {
+        final SimDevice device = mDevices.get(address);
+        if (device == null || getProfileState(profile, device) == BluetoothProfile.STATE_DISCONNECTED)
+            return false;
+        setProfileState(profile, address, device, BluetoothProfile.STATE_DISCONNECTED);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean connectA2dp(final String address) {
+        return mA2dpServiceReady && connectProfile(BluetoothProfile.A2DP, address);
+    }
+
+    @Override
+    public synchronized boolean disconnectA2dp(final String address) {
+        return disconnectProfile(BluetoothProfile.A2DP, address);
+    }
+
+    @Override
+    public synchronized boolean setA2dpPriority(final String address, final int priority) {
+        final SimDevice device = mDevices.get(address);
+        if (device == null)
+            return false;
+        device.priority = priority;
+        return true;
+    }
+
+    @Override
+    public synchronized int getA2dpConnectionState(final String address) {
+        final SimDevice device = mDevices.get(address);
+        return device != null ? device.a2dpState : BluetoothProfile.STATE_DISCONNECTED;
+    }
+
+    @Override
+    public synchronized boolean isHeadsetServiceReady() {
+        return mHeadsetServiceReady;
+    }
+
+    @Override
+    public synchronized boolean connectHeadset(final String address) {
+        final SimDevice device = mDevices.get(address);
+        return mHeadsetServiceReady && device != null && device.headsetSupported
+                && connectProfile(BluetoothProfile.HEADSET, address);
+    }
+
+    @Override
+    public synchronized boolean disconnectHeadset(final String address) {
+        return disconnectProfile(BluetoothProfile.HEADSET, address);
+    }
+
+    @Override
+    public synchronized int getHeadsetConnectionState(final String address) {
+        final SimDevice device = mDevices.get(address);
+        return device != null ? device.headsetState : BluetoothProfile.STATE_DISCONNECTED;
+    }
+}
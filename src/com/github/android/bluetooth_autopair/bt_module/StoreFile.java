@@ -0,0 +1,59 @@
+package com.github.android.bluetooth_autopair.bt_module;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Replaces a small state file in one step: the new contents go to a
+ * temporary sibling, which is synced to disk and then renamed over the file,
+ * so a crash or power loss leaves either the old contents or the new ones,
+ * never a torn mix. {@code android.util.AtomicFile} does the same from API 17.
+ */
+final class StoreFile {
+
+    private final File mFile;
+
+    private final File mTmpFile;
+
+    StoreFile(final File file) {
+        mFile = file;
+        mTmpFile = new File(file.getPath() + ".tmp");
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    FileOutputStream startWrite() throws IOException {
+        return new FileOutputStream(mTmpFile);
+    }
+
+    /**
+     * Syncs and closes {@code out}, which must have been flushed by any
+     * buffering stream on top of it, and moves it into place.
+     */
+    void finishWrite(final FileOutputStream out) throws IOException {
+        out.getFD().sync();
+        out.close();
+        if (!mTmpFile.renameTo(mFile))
+            throw new IOException("rename to " + mFile + " failed");
+    }
+
+    /** Drops a write that went wrong, leaving the file as it was. */
+    void failWrite(final FileOutputStream out) {
+        closeQuietly(out);
+        mTmpFile.delete();
+    }
+
+    static void closeQuietly(final Closeable closeable) {
+        if (closeable == null)
+            return;
+        try {
+            closeable.close();
+        } catch (final IOException e) {
+            // ignore
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.github.android.bluetooth_autopair.bt_module;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * Discrete-event {@link Scheduler} in plain Java. Nothing runs by itself: the
+ * owner calls {@link #runUntilIdle()} or {@link #advance(long)}, and the
+ * clock jumps from one due task to the next, so hours of simulated retries
+ * and timeouts take milliseconds and every run with the same inputs takes
+ * the same course.
+ * <p>
+ * Not thread safe; drive it, and call the engine running on it, from one
+ * thread.
+ */
+public class VirtualScheduler implements Scheduler {
+
+    private static final class Task implements Comparable<Task> {
+
+        final long time;
+
+        final long seq;
+
+        final int what;
+
+        final int arg1;
+
+        final Object obj;
+
+        /** Null for a message. */
+        final Runnable runnable;
+
+        Task(final long time, final long seq, final int what, final int arg1, final Object obj,
+                final Runnable runnable) {
+            this.time = time;
+            this.seq = seq;
+            this.what = what;
+            this.arg1 = arg1;
+            this.obj = obj;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public int compareTo(final Task other) {
+            if (time != other.time)
+                return time < other.time ? -1 : 1;
+            return seq < other.seq ? -1 : (seq == other.seq ? 0 : 1);
+        }
+    }
+
+    private final PriorityQueue<Task> mQueue = new PriorityQueue<Task>();
+
+    private Target mTarget;
+
+    private long mNow;
+
+    private long mSeq = 0;
+
+    private boolean mQuit = false;
+
+    /** Starts the clock at 1 s; like uptime it is never 0, which the engine reads as "not set". */
+    public VirtualScheduler() {
+        this(1000);
+    }
+
+    public VirtualScheduler(final long startTime) {
+        mNow = startTime;
+    }
+
+    @Override
+    public long now() {
+        return mNow;
+    }
+
+    @Override
+    public void setTarget(final Target target) {
+        mTarget = target;
+    }
+
+    private void enqueue(final long delayMs, final int what, final int arg1, final Object obj,
+            final Runnable runnable) {
+        if (mQuit)
+            return;
+        mQueue.add(new Task(mNow + Math.max(0, delayMs), mSeq++, what, arg1, obj, runnable));
+    }
+
+    @Override
+    public void sendMessage(final int what, final int arg1, final Object obj, final long delayMs) {
+        enqueue(delayMs, what, arg1, obj, null);
+    }
+
+    @Override
+    public void removeMessages(final int what, final Object obj) {
+        final Iterator<Task> iterator = mQueue.iterator();
+        while (iterator.hasNext()) {
+            final Task task = iterator.next();
+            if (task.runnable == null && task.what == what && (obj == null || task.obj == obj))
+                iterator.remove();
+        }
+    }
+
+    @Override
+    public void post(final Runnable runnable, final long delayMs) {
+        enqueue(delayMs, 0, 0, null, runnable);
+    }
+
+    @Override
+    public void removeCallbacks(final Runnable runnable) {
+        final Iterator<Task> iterator = mQueue.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().runnable == runnable)
+                iterator.remove();
+        }
+    }
+
+    @Override
+    public void removeAll() {
+        mQueue.clear();
+    }
+
+    @Override
+    public void quit() {
+        mQuit = true;
+        mQueue.clear();
+    }
+
+    public boolean isIdle() {
+        return mQueue.isEmpty();
+    }
+
+    /** Number of pending messages and runnables. */
+    public int size() {
+        return mQueue.size();
+    }
+
+    /**
+     * Moves the clock to the earliest pending task and runs it.
+     *
+     * @return false when nothing was pending
+     */
+    public boolean runNext() {
+        final Task task = mQueue.poll();
+        if (task == null)
+            return false;
+        mNow = task.time;
+        if (task.runnable != null) {
+            task.runnable.run();
+        } else if (mTarget != null) {
+            mTarget.handleMessage(task.what, task.arg1, task.obj);
+        }
+        return true;
+    }
+
+    /**
+     * Runs tasks, including the ones they schedule, until none is left.
+     *
+     * @return the number of tasks run
+     */
+    public int runUntilIdle() {
+        int count = 0;
+        while (runNext())
+            count++;
+        return count;
+    }
+
+    /** Runs every task due within {@code ms} from now, then sets the clock to that time. */
+    public void advance(final long ms) {
+        final long until = mNow + ms;
+        while (!mQueue.isEmpty() && mQueue.peek().time <= until)
+            runNext();
+        mNow = until;
+    }
+}